@@ -0,0 +1,42 @@
+/*
+ * The parsing algorithms which a parser may use.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+/**
+ *
+ * An enumeration of the algorithms which a Parser may use
+ * to recognize a string with its definitions.
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public enum Backend {
+	/**
+	 * Recursive descent with ordered choice and backtracking. This is
+	 * the default; it is fast for deterministic grammars like the Java one.
+	 */
+	backtracking,
+
+	/**
+	 * The Earley algorithm (see EarleyParser). It accepts any context-free
+	 * grammar, including ambiguous ones, in polynomial time.
+	 */
+	earley
+}
@@ -19,6 +19,15 @@
 
 package bnf;
 
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import util.LineIndex;
+
 /**
  * This is a simple Backus-Naur Form parser that parses BNF definitions
  * and builds a parse tree which provides a structured view over the
@@ -32,7 +41,7 @@ package bnf;
  * <br/>
  * Every definition consists of:<br/>
  * 1. Unique name, consisting of alphanumeric ASCII symbols.<br/>
- * 2. Colon ':' immediately after the definition identifier.<br/>
+ * 2. Colon ':' after the definition identifier.<br/>
  * 3. Any expression that uses tokens (terminals, these are surrounded
  *    by single quotes), identifiers (refer to BNF definitions),
  *    round brackets (groups expressions), square brackets (optional
@@ -41,145 +50,453 @@ package bnf;
  * <br/>
  * Expressions are choice of expressions or sequences of groups,
  * optionals, repetitions, tokens and identifiers.<br/>
+ * <br/>
+ * An expression may be followed by the keyword PRECEDENCE and an operator table
+ * in round brackets. The levels of the table are separated by '|' and go from the
+ * lowest precedence to the highest; every level is LEFT or RIGHT (the associativity)
+ * followed by its operator tokens, e.g.:<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;Sum: Operand PRECEDENCE ( LEFT '+' '-' | LEFT '*' '/' | RIGHT '^' )<br/>
+ * This matches operands separated by the operators and has the lowest priority
+ * of all operators.<br/>
+ * An operator token of a LEFT level may be followed by an operand, which is parsed instead of
+ * the right operand, i.e. the operator is postfix, e.g. Java's LEFT '&lt;' '&gt;' 'instanceof' Type.<br/>
+ * <br/>
+ * An atom or an expression in brackets may be followed by an EBNF quantifier:
+ * X* is the same as {X} and X+ is the same as X {X}, so both are parsed by loops.<br/>
+ * <br/>
+ * The definitions are compiled in a single pass: a tokenizer reads the text once and a
+ * recursive descent parser builds the tree of every definition as the tokens come, so the
+ * time is linear in the length of the grammar. The tokens may be separated by any white space
+ * and a '#' outside of a token begins a comment up to the end of the line. A syntax error is
+ * reported with its line and column.
  * 
  * @author Zuben El Acribi
  *
  */
 public class BnfDefParser {
 
+	private static final String PRECEDENCE = "PRECEDENCE";
+
+	/**
+	 * The kind of a token which is a word, i.e. an identifier or a keyword.
+	 * The other tokens are identified by their first character.
+	 */
+	private static final char WORD = 'a';
+
+	/**
+	 * The kind of the token after the last one.
+	 */
+	private static final char END = 0;
+
+	private CharSequence s;
+	private int end;
+
+	/**
+	 * Whether the text consists of several definitions, i.e. a definition ends
+	 * where an identifier followed by a colon begins.
+	 */
+	private boolean definitions;
+
+	/**
+	 * The current token: its kind, its beginning and its end.
+	 */
+	private char token;
+	private int pos;
+	private int tokenEnd;
+
+	private BnfDefParser(CharSequence s, boolean definitions) throws ParseException {
+		this.s = s;
+		this.end = s.length();
+		this.definitions = definitions;
+		next();
+	}
+
 	/**
 	 * Parses a single BNF definition.
 	 * @param bnfDef a string containing a single BNF definition.
 	 * @return the parse tree of the BNF expression.
 	 */
 	public static Tree parse(String bnfDef) throws ParseException {
-		return parse(bnfDef, 0, bnfDef.length());
+		BnfDefParser p = new BnfDefParser(bnfDef, false);
+		Tree res = p.expression();
+		if (p.token != END) {
+			throw p.error(p.pos, "Unexpected " + p.describe());
+		}
+		return res;
 	}
 
 	/**
-	 * Parses a part of a BNF definition (a substring).
-	 * @param bnfDef a string containing a single BNF definition.
-	 * @param begin the substring beginning  (inclusive).
-	 * @param end the substring end (exclusive).
-	 * @return the parse tree of the BNF expression.
+	 * Parses a grammar, i.e. a text of definitions each of which begins with its name followed
+	 * by a colon and goes on up to the next name followed by a colon, e.g.:<br/>
+	 * &nbsp;&nbsp;&nbsp;&nbsp;Block: '{' { Statement } '}'<br/>
+	 * &nbsp;&nbsp;&nbsp;&nbsp;Statement: Block | Expression ';'<br/>
+	 * The parent of every tree is a node of the name of its definition as the definitions
+	 * of a Parser expect.
+	 * @param grammar the text of the grammar.
+	 * @return the trees of the definitions by name, in the order of the grammar.
+	 */
+	public static LinkedHashMap<String, Tree> parseDefinitions(CharSequence grammar) throws ParseException {
+		LinkedHashMap<String, Tree> res = new LinkedHashMap<String, Tree>();
+		BnfDefParser p = new BnfDefParser(grammar.toString(), true);
+		while (p.token != END) {
+			if (p.token != WORD) {
+				throw p.error(p.pos, "Expected the name of a definition instead of " + p.describe());
+			}
+			Tree name = new Tree(p.s, p.pos, p.tokenEnd, null);
+			p.next();
+			if (p.token != ':') {
+				throw p.error(p.pos, "Expected ':' after '" + name.node + "' instead of " + p.describe());
+			}
+			p.next();
+			Tree t = p.expression();
+			if (res.containsKey(name.node)) {
+				throw p.error(name.begin, "Duplicate definition: " + name.node);
+			}
+			t.parent = name;
+			res.put(name.node, t);
+		}
+		return res;
+	}
+
+	/**
+	 * Reads and parses a grammar file (see parseDefinitions(CharSequence)).
+	 * @param f the grammar file.
+	 * @return the trees of the definitions by name.
+	 * @throws ParseException if there is a syntax error; the message tells the file.
+	 */
+	public static LinkedHashMap<String, Tree> parseDefinitions(File f) throws IOException, ParseException {
+		StringBuffer grammar = new StringBuffer((int) f.length());
+		Reader inp = new FileReader(f);
+		try {
+			char[] buff = new char[8192];
+			for (int n = inp.read(buff); n >= 0; n = inp.read(buff)) {
+				grammar.append(buff, 0, n);
+			}
+		} finally {
+			inp.close();
+		}
+		try {
+			return parseDefinitions(grammar.toString());
+		} catch (ParseException ex) {
+			throw new ParseException(f.getPath() + ": " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Reads the next token.
 	 */
-	private static Tree parse(String bnfDef, int begin, int end) throws ParseException {
-		int firstSpacePos = -1; // We should remember the place of the first space.
-		int bracketCount = 0; // Bracket nesting count.
-		boolean quotes = false; // Are we positioned within a string (quotes).
-		
-		// For every char do:
-		for (int i = begin; i < end; i++) {
-			char ch = bnfDef.charAt(i);
-			// If we are not within a string then count up and down when meeting an opening or closing bracket.
-			if (!quotes && (ch == '(' || ch == '[' || ch == '{')) {
-				bracketCount++;
-			} else if (!quotes && (ch == ')' || ch == ']' || ch == '}')) {
-				bracketCount--;
-			} else if (ch == '\'') { // If we meet quote then change 'within string' flag to the opposite (entering/exiting a string).
-				quotes = !quotes;
-			} else if (quotes && ch == '\\') { // If we are within a string then care about escaping with backslash (skip next char if backslash met).
+	private void next() throws ParseException {
+		int i = tokenEnd;
+		while (i < end) {
+			char ch = s.charAt(i);
+			if (Character.isWhitespace(ch)) {
 				i++;
-			} else if (!quotes && bracketCount == 0) { // If we are not within a string and brackets then check for operators.
-				if (ch == ' ' && firstSpacePos < 0 && i < end - 1 && // We have met the first space in this substring (no operator/bracket after it).
-						bnfDef.charAt(i + 1) != '|' &&
-						bnfDef.charAt(i + 1) != ')' &&
-						bnfDef.charAt(i + 1) != ']' &&
-						bnfDef.charAt(i + 1) != '}') {
-					firstSpacePos = i; // Remember its position.
-				} else if (ch == '|') { // We have met a choice operator (lower priority than sequence, i.e. space).
-					Tree res = new Tree(NodeType.choice, null); // This node is a 'choice'.
-					res.addBranch(parse(bnfDef, begin, i - 1)); // Parse the left part.
-					Tree t = parse(bnfDef, i + 2, end); // Parse the right part. It may contain more 'choices'.
-					if (t.type == NodeType.choice) { // If the right part contains 'choices' then flatten then parse tree (more optimized representation).
-						for (Tree b : t.branches) {
-							res.addBranch(b);
-						}
-					} else { // Otherwise we have nothing else to do with the right part, just add it to the node 'res'.  
-						res.addBranch(t);
-					}
-					return res; // 'Choice' has been parsed.
+			} else if (ch == '#') { // A comment.
+				while (i < end && s.charAt(i) != '\n') {
+					i++;
 				}
+			} else {
+				break;
 			}
 		}
-
-		// No 'choices' outside brackets.
-		// Check whether we have met a space (just space without the 'choice' operator or a closing bracket).
-		if (firstSpacePos > 0) {
-			Tree res = new Tree(NodeType.sequence, null); // If so then this node is a 'sequence'.
-			res.addBranch(parse(bnfDef, begin, firstSpacePos)); // The left part is from the beginning to that space.
-			Tree t = parse(bnfDef, firstSpacePos + 1, end); // The right part is after the space. The result tree node may be a 'sequence'.
-			if (t.type == NodeType.sequence) { // If so then flatten the parse tree (more optimized representation).
-				for (Tree b : t.branches) {
-					res.addBranch(b);
+		pos = i;
+		if (i >= end) {
+			token = END;
+			tokenEnd = i;
+			return;
+		}
+		char ch = s.charAt(i);
+		if (ch == '\'') {
+			// Care about escaping with backslash within a string.
+			for (i++; i < end && s.charAt(i) != '\''; i++) {
+				if (s.charAt(i) == '\\') {
+					i++;
 				}
-			} else { // Otherwise we have nothing else to do with the right part, just add it to the node 'res'.
-				res.addBranch(t);
 			}
-			return res; // 'Sequence' has been parsed.
-		}
-
-		// There are no 'choice' and 'sequence' operators outside brackets.
-		// Therefore the whole expression should be surrounded by brackets or it should be an atom:
-		// string, identifier or keyword (TOKEN, IDENTIFIER, NEW_LINE).
-		char ch = bnfDef.charAt(begin);
-		
-		// Define an offset for spaces/new lines before and after the brackets
-		// (if the substring represents an expression surrounded by brackets).
-		int leftOffset = 1;
-		if (begin + leftOffset < end && Character.isWhitespace(bnfDef.charAt(begin + leftOffset))) {
-			leftOffset++;
-		}
-		int rightOffset = 1;
-		if (end - rightOffset - 1 >= begin && Character.isWhitespace(bnfDef.charAt(end - rightOffset - 1))) {
-			rightOffset++;
-		}
-		
-		// Check for round brackets. These brackets just groups expressions. 
-		if (ch == '(') {
-			if (bnfDef.charAt(end - 1) != ')') {
-				throw new ParseException("The expression in [" + begin + ", " + (end - 1) + "]: '" +
-						bnfDef.substring(begin, end) + "' should be surrounded by round brackets");
+			if (i >= end) {
+				throw error(pos, "The token is not closed");
 			}
-			Tree res = parse(bnfDef, begin + leftOffset, end - rightOffset);
-			res.begin -= leftOffset;
-			res.end += rightOffset;
-			res.node = res.s.substring(res.begin, res.end);
-			return res;
-		}
-		
-		// Check for square brackets. These brackets surround an optional expression.
-		if (ch == '[') {
-			if (bnfDef.charAt(end - 1) != ']') {
-				throw new ParseException("The expression in [" + begin + ", " + (end - 1) + "]: '" +
-						bnfDef.substring(begin, end) + "' should be surrounded by square brackets");
+			token = ch;
+			tokenEnd = i + 1;
+		} else if (Character.isJavaIdentifierPart(ch)) {
+			while (i < end && Character.isJavaIdentifierPart(s.charAt(i))) {
+				i++;
 			}
-			Tree t = parse(bnfDef, begin + leftOffset, end - rightOffset);
-			Tree res = new Tree(NodeType.optional, null);
-			res.addBranch(t);
-			res.begin -= leftOffset;
-			res.end += rightOffset;
-			res.node = res.s.substring(res.begin, res.end);
-			return res;
-		}
-		
-		// Check for curly brackets. These brackets surround a repetitive expression (0 or more times).
-		if (ch == '{') {
-			if (bnfDef.charAt(end - 1) != '}') {
-				throw new ParseException("The expression in [" + begin + ", " + (end - 1) + "]: '" +
-						bnfDef.substring(begin, end) + "' should be surrounded by curly brackets");
+			token = WORD;
+			tokenEnd = i;
+		} else if ("()[]{}|*+:".indexOf(ch) >= 0) {
+			token = ch;
+			tokenEnd = i + 1;
+		} else {
+			throw error(pos, "Unexpected character '" + ch + "'");
+		}
+	}
+
+	/**
+	 * Parses a choice optionally followed by an operator table.
+	 */
+	private Tree expression() throws ParseException {
+		int begin = pos;
+		Tree operand = choice();
+		if (!word(PRECEDENCE)) {
+			return operand;
+		}
+		next();
+		if (token != '(') {
+			throw error(pos, "The operator table should be surrounded by round brackets instead of " + describe());
+		}
+		Tree table = group();
+		Tree res = new Tree(NodeType.precedence, null);
+		res.addBranch(operand);
+		if (table.type == NodeType.choice) {
+			for (Tree level : table.branches) {
+				res.addBranch(level(level));
 			}
-			Tree t = parse(bnfDef, begin + leftOffset, end - rightOffset);
-			Tree res = new Tree(NodeType.repetition, null);
-			res.addBranch(t);
-			res.begin -= leftOffset;
-			res.end += rightOffset;
-			res.node = res.s.substring(res.begin, res.end);
-			return res;
-		}
-		
-		// No brackets found. This is an atom (string, identifier or keyword).
-		return new Tree(bnfDef, begin, end, null);
+		} else {
+			res.addBranch(level(table));
+		}
+		res.begin = begin;
+		res.end = table.end;
+		res.node = s.subSequence(res.begin, res.end).toString();
+		return res;
+	}
+
+	/**
+	 * Parses sequences separated by '|'. An alternative which is a choice in round
+	 * brackets is merged.
+	 */
+	private Tree choice() throws ParseException {
+		Tree t = sequence();
+		if (token != '|') {
+			return t;
+		}
+		Tree res = new Tree(NodeType.choice, null); // This node is a 'choice'.
+		merge(res, t);
+		while (token == '|') {
+			next();
+			merge(res, sequence());
+		}
+		res.node = s.subSequence(res.begin, res.end).toString();
+		return res;
+	}
+
+	/**
+	 * Parses operands up to a '|', a closing bracket, PRECEDENCE or the end of the definition.
+	 * An operand which is a sequence in round brackets is merged.
+	 */
+	private Tree sequence() throws ParseException {
+		Tree t = operand();
+		if (!operandBegins()) {
+			return t;
+		}
+		Tree res = new Tree(NodeType.sequence, null); // This node is a 'sequence'.
+		merge(res, t);
+		while (operandBegins()) {
+			merge(res, operand());
+		}
+		res.node = s.subSequence(res.begin, res.end).toString();
+		return res;
+	}
+
+	/**
+	 * Adds a branch to a choice or a sequence, or its branches if it is of the same type.
+	 * The string of the node is set when all branches are added, since it may be long.
+	 */
+	private static void merge(Tree res, Tree t) {
+		if (t.type == res.type) {
+			for (Tree b : t.branches) {
+				res.link(b);
+			}
+		} else {
+			res.link(t);
+		}
+	}
+
+	private boolean operandBegins() {
+		switch (token) {
+		case '\'':
+		case '(':
+		case '[':
+		case '{':
+			return true;
+		case WORD:
+			return !word(PRECEDENCE) && !(definitions && nextIsColon());
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return 'true' if the current word is followed by a colon, i.e. it begins the next definition.
+	 */
+	private boolean nextIsColon() {
+		for (int i = tokenEnd; i < end; i++) {
+			char ch = s.charAt(i);
+			if (ch == ':') {
+				return true;
+			} else if (!Character.isWhitespace(ch)) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Parses an atom or an expression in brackets followed by quantifiers.
+	 */
+	private Tree operand() throws ParseException {
+		Tree t;
+		switch (token) {
+		case '(':
+			t = group();
+			break;
+		case '[':
+		case '{':
+			// Square brackets surround an optional expression and curly brackets surround
+			// a repetitive expression (0 or more times).
+			int begin = pos;
+			t = new Tree(token == '[' ? NodeType.optional : NodeType.repetition, null);
+			t.addBranch(bracketed(token == '[' ? ']' : '}'));
+			t.begin = begin;
+			t.end = tokenEnd;
+			t.node = s.subSequence(t.begin, t.end).toString();
+			next();
+			break;
+		case '\'':
+		case WORD:
+			// This is an atom (string, identifier or keyword).
+			if (!operandBegins()) {
+				throw error(pos, "Expected an operand instead of " + describe());
+			}
+			t = new Tree(s, pos, tokenEnd, null);
+			next();
+			break;
+		default:
+			throw error(pos, "Expected an operand instead of " + describe());
+		}
+		while (token == '*' || token == '+') {
+			Tree rep = new Tree(NodeType.repetition, null);
+			rep.addBranch(token == '*' ? t : copy(t)); // X+ has two copies of X.
+			rep.end = tokenEnd;
+			rep.node = s.subSequence(rep.begin, rep.end).toString();
+			if (token == '*') {
+				t = rep;
+			} else {
+				Tree seq = new Tree(NodeType.sequence, null);
+				seq.addBranch(t);
+				seq.addBranch(rep);
+				t = seq;
+			}
+			next();
+		}
+		return t;
+	}
+
+	/**
+	 * Parses an expression in round brackets. These brackets just group expressions,
+	 * so the tree of the expression is returned; a non-terminal gets the brackets in its range.
+	 */
+	private Tree group() throws ParseException {
+		int begin = pos;
+		Tree t = bracketed(')');
+		if (t.branches.size() > 0) {
+			t.begin = begin;
+			t.end = tokenEnd;
+			t.node = s.subSequence(t.begin, t.end).toString();
+		}
+		next();
+		return t;
+	}
+
+	/**
+	 * Parses an expression after an opening bracket up to the closing one.
+	 * @param close the closing bracket, which becomes the current token.
+	 */
+	private Tree bracketed(char close) throws ParseException {
+		int open = pos;
+		next();
+		Tree t = expression();
+		if (token != close) {
+			throw error(pos, "Expected '" + close + "' to close the bracket at " + position(open) + " instead of " + describe());
+		}
+		return t;
+	}
+
+	/**
+	 * Converts a level of an operator table, i.e. a sequence of LEFT or RIGHT and tokens,
+	 * to a tree of type 'left' or 'right' whose branches are the tokens. A token which is
+	 * followed by an operand becomes a sequence of the token and the operand (a postfix operator).
+	 */
+	private Tree level(Tree t) throws ParseException {
+		boolean valid = t.type == NodeType.sequence &&
+				(t.branches.get(0).type == NodeType.left || t.branches.get(0).type == NodeType.right);
+		for (int i = 1; valid && i < t.branches.size(); i++) {
+			valid = t.branches.get(i).type == NodeType.token ||
+					(i > 1 && t.branches.get(0).type == NodeType.left && t.branches.get(i - 1).type == NodeType.token);
+		}
+		if (!valid) {
+			throw error(t.begin, "The level '" + t.node + "' should be LEFT or RIGHT followed by operator tokens " +
+					"(a token of a LEFT level may be followed by its operand)");
+		}
+		t.type = t.branches.get(0).type;
+		ArrayList<Tree> ops = new ArrayList<Tree>();
+		for (int i = 1; i < t.branches.size(); i++) {
+			Tree b = t.branches.get(i);
+			if (b.type == NodeType.token) {
+				ops.add(b);
+			} else {
+				Tree postfix = new Tree(NodeType.sequence, null);
+				postfix.addBranch(ops.remove(ops.size() - 1));
+				postfix.addBranch(b);
+				postfix.parent = t;
+				ops.add(postfix);
+			}
+		}
+		t.branches = ops;
+		return t;
+	}
+
+	/**
+	 * Copies the tree of an expression, so that it may be used twice in a definition.
+	 */
+	private static Tree copy(Tree t) throws ParseException {
+		if (t.branches.size() == 0) {
+			return new Tree(t.s, t.begin, t.end, null);
+		}
+		Tree res = new Tree(t.type, null);
+		for (Tree b : t.branches) {
+			res.addBranch(copy(b));
+		}
+		res.begin = t.begin;
+		res.end = t.end;
+		res.node = t.node;
+		return res;
+	}
+
+	private boolean word(String w) {
+		return token == WORD && tokenEnd - pos == w.length() && w.contentEquals(s.subSequence(pos, tokenEnd));
+	}
+
+	/**
+	 * @return the current token for an error message.
+	 */
+	private String describe() {
+		return token == END ? "the end of the definition" : "'" + s.subSequence(pos, tokenEnd) + "'";
+	}
+
+	/**
+	 * @return the line and the column of a position for an error message.
+	 */
+	private String position(int pos) {
+		LineIndex lines = new LineIndex(s); // Built only when there is an error.
+		return "line " + lines.line(pos) + ", column " + lines.column(pos);
+	}
+
+	/**
+	 * @return an exception for a syntax error at the given position.
+	 */
+	private ParseException error(int pos, String message) {
+		return new ParseException(message + " at " + position(pos));
 	}
 
 }
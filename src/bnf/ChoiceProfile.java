@@ -0,0 +1,218 @@
+/*
+ * Statistics on which alternative of a choice matches.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ *
+ * A profile which keeps for every choice of a grammar how many times
+ * each of its alternatives has matched.<br/>
+ * The profile is recorded by a Parser (see Parser.setProfile()) while parsing
+ * a training corpus and is then saved to a text file. Every line of the file
+ * corresponds to a choice and contains the choice key followed by the counts
+ * of its alternatives, e.g.:<br/>
+ * <br/>
+ * Primary 1520 310 204 3 980 0 2 20110 0<br/>
+ * <br/>
+ * The choice key is the name of the definition followed by the path of
+ * branch numbers from the definition's root to the choice (e.g. Statement.15.2),
+ * so a profile remains valid as long as the definitions it refers to are not changed.<br/>
+ * A loaded profile is supplied to Parser.applyProfile() which reorders the alternatives
+ * where this is safe.
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public class ChoiceProfile {
+
+	/**
+	 * Counts read from a profile file or merged from recordings, by choice key.
+	 */
+	private HashMap<String, long[]> counts = new HashMap<String, long[]>();
+
+	/**
+	 * Counts being recorded, by choice node. Converting a choice node to its key is
+	 * expensive, so this is done once when the profile is saved.
+	 */
+	private IdentityHashMap<Tree, long[]> recorded = new IdentityHashMap<Tree, long[]>();
+
+	/**
+	 * Records that an alternative has matched.
+	 * @param choice a choice node of a BNF definition.
+	 * @param alternative the number of the alternative which has matched.
+	 */
+	public void record(Tree choice, int alternative) {
+		long[] c = recorded.get(choice);
+		if (c == null) {
+			c = new long[choice.branches.size()];
+			recorded.put(choice, c);
+		}
+		c[alternative]++;
+	}
+
+	/**
+	 * @param choice a choice node of a BNF definition.
+	 * @return the counts of the alternatives of the given choice or null
+	 *   if there are no statistics for it.
+	 */
+	public long[] getCounts(Tree choice) {
+		merge();
+		long[] c = counts.get(key(choice));
+		if (c == null || c.length != choice.branches.size()) {
+			return null; // The definition has changed since the profile was recorded.
+		}
+		return c;
+	}
+
+	/**
+	 * Parses all files in the given directories and records the matched alternatives.
+	 * @param parser the parser with which to parse.
+	 * @param def the definition which every file should match, e.g. CompilationUnit.
+	 * @param dir a directory with a training corpus.
+	 * @param extension the extension of the files to parse, e.g. ".java".
+	 */
+	public void train(Parser parser, String def, File dir, String extension) {
+		ChoiceProfile old = parser.profile;
+		parser.setProfile(this);
+		try {
+			train(parser, def, dir.listFiles(), extension);
+		} finally {
+			parser.setProfile(old);
+		}
+	}
+
+	private void train(Parser parser, String def, File[] entries, String extension) {
+		if (entries == null) {
+			return;
+		}
+		for (File entry: entries) {
+			if (entry.isDirectory()) {
+				train(parser, def, entry.listFiles(), extension);
+			} else if (entry.getName().endsWith(extension)) {
+				try {
+					parser.parse(def, entry);
+				} catch (ParseException ex) {
+					System.err.println("Skipping " + entry.getAbsolutePath() + ": " + ex.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Saves the profile.
+	 * @param f the profile file.
+	 */
+	public void save(File f) throws IOException {
+		merge();
+		List<String> keys = new ArrayList<String>(counts.keySet());
+		Collections.sort(keys);
+		PrintWriter out = new PrintWriter(f);
+		for (String key: keys) {
+			out.print(key);
+			for (long n: counts.get(key)) {
+				out.print(' ');
+				out.print(n);
+			}
+			out.println();
+		}
+		out.close();
+	}
+
+	/**
+	 * Loads a profile saved by save().
+	 * @param f the profile file.
+	 * @return the loaded profile.
+	 */
+	public static ChoiceProfile load(File f) throws IOException {
+		ChoiceProfile res = new ChoiceProfile();
+		BufferedReader inp = new BufferedReader(new FileReader(f));
+		while (true) {
+			String line = inp.readLine();
+			if (line == null) {
+				break;
+			}
+			line = line.trim();
+			if (line.length() == 0) {
+				continue;
+			}
+			String[] components = line.split(" ");
+			long[] c = new long[components.length - 1];
+			try {
+				for (int i = 0; i < c.length; i++) {
+					c[i] = Long.parseLong(components[i + 1]);
+				}
+			} catch (NumberFormatException ex) {
+				inp.close();
+				throw new IOException("Invalid entry in " + f.getPath() + ": '" + line + "'");
+			}
+			res.counts.put(components[0], c);
+		}
+		inp.close();
+		return res;
+	}
+
+	/**
+	 * Adds the recorded counts to the counts by key.
+	 */
+	private void merge() {
+		for (Tree choice: recorded.keySet()) {
+			String key = key(choice);
+			long[] c = counts.get(key);
+			long[] r = recorded.get(choice);
+			if (c == null || c.length != r.length) {
+				counts.put(key, r.clone());
+			} else {
+				for (int i = 0; i < c.length; i++) {
+					c[i] += r[i];
+				}
+			}
+		}
+		recorded.clear();
+	}
+
+	/**
+	 * @param choice a node of a BNF definition.
+	 * @return the definition name followed by the branch numbers
+	 *   which lead from the definition's root to the given node.
+	 */
+	public static String key(Tree choice) {
+		StringBuffer path = new StringBuffer();
+		Tree t = choice;
+		while (t.parent != null && t.parent.parent != null) {
+			path.insert(0, "." + t.parent.branches.indexOf(t));
+			t = t.parent;
+		}
+		if (t.parent == null) {
+			throw new RuntimeException("Not a node of a named definition: " + choice.node);
+		}
+		return t.parent.node + path;
+	}
+
+}
@@ -0,0 +1,60 @@
+/*
+ * A syntax error found by a recovering parser.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+/**
+ * 
+ * A syntax error which the parser has skipped in the recovering mode
+ * (see Parser.setRecovering()).
+ * 
+ * @author Zuben El Acribi
+ *
+ */
+public class Diagnostic {
+
+	/**
+	 * The skipped text: the substring of an error node or the end of the string
+	 * which hasn't been parsed.
+	 */
+	public int begin, end;
+	
+	/**
+	 * The position where the parser has failed.
+	 */
+	public int position;
+	
+	/**
+	 * The error message.
+	 */
+	public String message;
+	
+	public Diagnostic(int begin, int end, int position, String message) {
+		this.begin = begin;
+		this.end = end;
+		this.position = position;
+		this.message = message;
+	}
+	
+	@Override
+	public String toString() {
+		return message;
+	}
+	
+}
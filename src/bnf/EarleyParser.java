@@ -0,0 +1,742 @@
+/*
+ * A generalized parser which uses the definitions of a Parser.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+
+/**
+ *
+ * An Earley parser over the definitions of a Parser.<br/>
+ * Unlike the backtracking parser it accepts any context-free grammar: ambiguous
+ * grammars, alternatives which share long prefixes and left recursion. The time is
+ * cubic in the worst case, quadratic for unambiguous grammars and linear for most
+ * deterministic ones.<br/>
+ * <br/>
+ * The definitions are compiled into a context-free grammar. Every node of a definition
+ * becomes a symbol: tokens, IDENTIFIER, NEW_LINE, TOKEN and the definitions without body
+ * (lexical rules and extensions) are terminals, the identifiers are replaced by the bodies
+ * of the definitions they refer to and the other nodes are nonterminals:<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- sequence: X -> B1 B2 ... Bn;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- choice: X -> B1 | B2 | ... | Bn;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- optional: X -> B | (empty);<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- repetition: X -> (empty) | X B;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- list: X -> B | X Sep B;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- operator table: X -> L1, Li -> L(i+1) | Li Op L(i+1) for a left-associative level
+ * and Li -> L(i+1) | L(i+1) Op Li for a right-associative one, where the last level is followed by the operand.<br/>
+ * Nullable symbols are handled as suggested by Aycock and Horspool: when a nullable
+ * symbol is predicted, the item which waits for it is advanced at once.<br/>
+ * The whitespace is skipped before every terminal with Parser.skipWhiteSpace(), so the
+ * item sets are kept at the positions where terminals end.<br/>
+ * <br/>
+ * The item sets make a shared packed parse forest: every recognized symbol (X, begin, end)
+ * is kept once at its end position, no matter how many derivations it has, and its
+ * derivations are found from the items. The parse tree is extracted from the forest with
+ * the rules of the backtracking parser, so it has the same shape as the trees of Parser:<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- a choice takes its first alternative which matches;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- the elements of sequences and repetitions take as much
+ * of the string as possible, from left to right;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- an optional prefers its expression to the empty string.<br/>
+ * For a grammar which the backtracking parser handles, the trees are usually the same.
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public class EarleyParser {
+
+	/**
+	 * A grammar rule X -> rhs.
+	 */
+	private static class Rule {
+
+		public int lhs;
+		public int[] rhs;
+
+		/**
+		 * The number of the item with dot at 0. The item with dot at i has number state + i.
+		 */
+		public int state;
+
+		public Rule(int lhs, int[] rhs, int state) {
+			this.lhs = lhs;
+			this.rhs = rhs;
+			this.state = state;
+		}
+
+	}
+
+	/**
+	 * The items which end at a given position.
+	 */
+	private static class ItemSet {
+
+		/**
+		 * The items (state << 32 | origin) in the order of their addition.
+		 */
+		public long[] items = new long[16];
+		public int size;
+		public LongSet keys = new LongSet();
+
+		/**
+		 * The items which wait for a nonterminal, by symbol.
+		 */
+		public HashMap<Integer, LongList> waiting = new HashMap<Integer, LongList>();
+
+		/**
+		 * The predicted nonterminals.
+		 */
+		public HashSet<Integer> predicted = new HashSet<Integer>();
+
+		/**
+		 * The beginnings of the recognized non-empty symbols which end here, by symbol.
+		 */
+		public HashMap<Integer, IntList> recognized = new HashMap<Integer, IntList>();
+		public LongSet recognizedKeys = new LongSet();
+
+		/**
+		 * The ends of the terminals which begin here, by symbol (-1 if a terminal doesn't match).
+		 */
+		public HashMap<Integer, Integer> scanned = new HashMap<Integer, Integer>();
+
+		public boolean add(int state, int origin) {
+			long item = ((long) state << 32) | origin;
+			if (!keys.add(item)) {
+				return false;
+			}
+			if (size == items.length) {
+				items = Arrays.copyOf(items, size << 1);
+			}
+			items[size++] = item;
+			return true;
+		}
+
+		public boolean contains(int state, int origin) {
+			return keys.contains(((long) state << 32) | origin);
+		}
+
+		public void addRecognized(int symbol, int begin) {
+			if (recognizedKeys.add(((long) symbol << 32) | begin)) {
+				IntList l = recognized.get(symbol);
+				if (l == null) {
+					l = new IntList();
+					recognized.put(symbol, l);
+				}
+				l.add(begin);
+			}
+		}
+
+		public boolean isRecognized(int symbol, int begin) {
+			return recognizedKeys.contains(((long) symbol << 32) | begin);
+		}
+
+	}
+
+	/**
+	 * A set of non-negative longs with open addressing.
+	 */
+	private static class LongSet {
+
+		private long[] keys = newKeys(16);
+		private int size;
+
+		private static long[] newKeys(int n) {
+			long[] res = new long[n];
+			Arrays.fill(res, -1);
+			return res;
+		}
+
+		private int slot(long[] keys, long key) {
+			int mask = keys.length - 1;
+			int i = (int) ((key * 0x9e3779b97f4a7c15L) >>> 40) & mask;
+			while (keys[i] >= 0 && keys[i] != key) {
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+
+		public boolean add(long key) {
+			int i = slot(keys, key);
+			if (keys[i] == key) {
+				return false;
+			}
+			keys[i] = key;
+			if (++size * 2 > keys.length) {
+				long[] old = keys;
+				keys = newKeys(old.length << 1);
+				for (long k : old) {
+					if (k >= 0) {
+						keys[slot(keys, k)] = k;
+					}
+				}
+			}
+			return true;
+		}
+
+		public boolean contains(long key) {
+			return keys[slot(keys, key)] == key;
+		}
+
+	}
+
+	private static class LongList {
+
+		public long[] a = new long[4];
+		public int size;
+
+		public void add(long x) {
+			if (size == a.length) {
+				a = Arrays.copyOf(a, size << 1);
+			}
+			a[size++] = x;
+		}
+
+	}
+
+	private static class IntList {
+
+		public int[] a = new int[4];
+		public int size;
+
+		public void add(int x) {
+			if (size == a.length) {
+				a = Arrays.copyOf(a, size << 1);
+			}
+			a[size++] = x;
+		}
+
+	}
+
+	private Parser parser;
+
+	/**
+	 * The symbols (definition nodes) by symbol number.
+	 */
+	private ArrayList<Tree> symbols = new ArrayList<Tree>();
+	private IdentityHashMap<Tree, Integer> symbolIds = new IdentityHashMap<Tree, Integer>();
+
+	/**
+	 * The rules by symbol number; null for the terminals.
+	 */
+	private Rule[][] rules;
+
+	/**
+	 * The rules by item number.
+	 */
+	private Rule[] states;
+
+	private boolean[] nullable;
+
+	/**
+	 * The item sets of the string being parsed by position.
+	 */
+	private ItemSet[] sets;
+	private CharSequence s;
+
+	/**
+	 * Compiles the definitions of a parser into a context-free grammar.
+	 * @param parser a parser whose definitions are already loaded and compiled.
+	 */
+	public EarleyParser(Parser parser) {
+		this.parser = parser;
+		ArrayList<Rule[]> ruleList = new ArrayList<Rule[]>();
+		int stateCount = 0;
+		for (String def : parser.definitions.keySet()) {
+			Tree t = parser.definitions.get(def);
+			if (t != null) {
+				symbol(t);
+			}
+		}
+		// Every nonterminal symbol adds the symbols of its branches, so the list grows while it is compiled.
+		for (int i = 0; i < symbols.size(); i++) {
+			Tree t = symbols.get(i);
+			Rule[] r;
+			if (t.type == NodeType.sequence) {
+				int[] rhs = new int[t.branches.size()];
+				for (int j = 0; j < rhs.length; j++) {
+					rhs[j] = symbol(t.branches.get(j));
+				}
+				r = new Rule[] { new Rule(i, rhs, 0) };
+			} else if (t.type == NodeType.choice) {
+				r = new Rule[t.branches.size()];
+				for (int j = 0; j < r.length; j++) {
+					r[j] = new Rule(i, new int[] { symbol(t.branches.get(j)) }, 0);
+				}
+			} else if (t.type == NodeType.optional) {
+				r = new Rule[] { new Rule(i, new int[] { symbol(t.branches.get(0)) }, 0), new Rule(i, new int[0], 0) };
+			} else if (t.type == NodeType.repetition) {
+				r = new Rule[] { new Rule(i, new int[0], 0), new Rule(i, new int[] { i, symbol(t.branches.get(0)) }, 0) };
+			} else if (t.type == NodeType.list) {
+				int elem = symbol(t.branches.get(0));
+				r = new Rule[] { new Rule(i, new int[] { elem }, 0), new Rule(i, new int[] { i, symbol(t.branches.get(1)), elem }, 0) };
+			} else if (t.type == NodeType.precedence) {
+				r = new Rule[] { new Rule(i, new int[] { symbol(t.branches.get(1)) }, 0) };
+			} else if (t.type == NodeType.left || t.type == NodeType.right) {
+				// A level matches the expressions of the next level separated by its operators.
+				int level = t.parent.branches.indexOf(t);
+				int next = symbol(t.parent.branches.get(level + 1 < t.parent.branches.size() ? level + 1 : 0));
+				r = new Rule[t.branches.size() + 1];
+				r[0] = new Rule(i, new int[] { next }, 0);
+				for (int j = 0; j < t.branches.size(); j++) {
+					Tree b = t.branches.get(j);
+					int op = symbol(Parser.token(b));
+					if (b != Parser.token(b)) { // A postfix operator is followed by its own operand.
+						r[j + 1] = new Rule(i, new int[] { i, op, symbol(b.branches.get(1)) }, 0);
+					} else {
+						r[j + 1] = new Rule(i, t.type == NodeType.left ? new int[] { i, op, next } : new int[] { next, op, i }, 0);
+					}
+				}
+			} else {
+				r = null; // A terminal.
+			}
+			if (r != null) {
+				for (Rule u : r) {
+					u.state = stateCount;
+					stateCount += u.rhs.length + 1;
+				}
+			}
+			ruleList.add(r);
+		}
+		rules = ruleList.toArray(new Rule[ruleList.size()][]);
+		states = new Rule[stateCount];
+		for (Rule[] r : rules) {
+			if (r != null) {
+				for (Rule u : r) {
+					for (int i = 0; i <= u.rhs.length; i++) {
+						states[u.state + i] = u;
+					}
+				}
+			}
+		}
+		computeNullable();
+	}
+
+	/**
+	 * @param t a node of a definition.
+	 * @return the symbol number of the node; an identifier which refers to a definition with body
+	 *   gets the number of the body.
+	 */
+	private int symbol(Tree t) {
+		Tree u = t;
+		for (int i = 0; u.type == NodeType.identifier && parser.definitions.get(u.node) != null; i++) {
+			if (i > parser.definitions.size()) {
+				throw new RuntimeException("Cyclic definition: " + t.node);
+			}
+			u = parser.definitions.get(u.node);
+		}
+		Integer id = symbolIds.get(u);
+		if (id == null) {
+			id = symbols.size();
+			symbols.add(u);
+			symbolIds.put(u, id);
+		}
+		return id;
+	}
+
+	private void computeNullable() {
+		nullable = new boolean[rules.length];
+		for (boolean changed = true; changed; ) {
+			changed = false;
+			for (int i = 0; i < rules.length; i++) {
+				if (rules[i] != null && !nullable[i]) {
+					for (Rule r : rules[i]) {
+						if (nullable(r)) {
+							nullable[i] = changed = true;
+							break;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private boolean nullable(Rule r) {
+		for (int x : r.rhs) {
+			if (!nullable[x]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parses a string. The line index of the parser should be set.
+	 * @param def the body of the definition which the string should match.
+	 * @param s the string.
+	 * @return the parse tree.
+	 * @throws ParseException if the string doesn't match the definition.
+	 */
+	public Tree parse(Tree def, CharSequence s) throws ParseException {
+		int start = symbol(def);
+		int n = s.length();
+		this.s = s;
+		sets = new ItemSet[n + 1];
+		try {
+			sets[0] = new ItemSet();
+			if (rules[start] == null) {
+				// The definition is a terminal: recognize it as a sequence of one symbol.
+				int end = scan(sets[0], start, 0);
+				if (end < 0 || parser.skipWhiteSpace(s, end, n) != n) {
+					throw new ParseException("Unrecognized: " + symbols.get(start).node + " expected at" + parser.pos(0));
+				}
+				return terminal(symbols.get(start), 0);
+			}
+			predict(sets[0], start, 0);
+			int furthest = 0;
+			for (int i = 0; i <= n; i++) {
+				if (sets[i] != null) {
+					process(i);
+					furthest = i;
+				}
+			}
+			parser.maxParsedChar = furthest;
+			// The longest recognized prefix.
+			int end = -1;
+			for (int i = n; i >= 0 && end < 0; i--) {
+				if (i == 0 ? nullable[start] : sets[i] != null && sets[i].isRecognized(start, 0)) {
+					end = i;
+				}
+			}
+			if (end < 0) {
+				throw new ParseException("Unrecognized: the parser didn't manage to parse" + parser.pos(furthest));
+			}
+			if (parser.skipWhiteSpace(s, end, n) != n) {
+				throw new ParseException("Recognized up to" + parser.pos(end) + " because the parser didn't manage to parse" + parser.pos(furthest));
+			}
+			Tree res = build(start, 0, end);
+			res.node = s.subSequence(res.begin, res.end).toString();
+			return res;
+		} finally {
+			sets = null;
+			this.s = null;
+		}
+	}
+
+	private void predict(ItemSet set, int symbol, int pos) {
+		if (set.predicted.add(symbol)) {
+			for (Rule r : rules[symbol]) {
+				set.add(r.state, pos);
+			}
+		}
+	}
+
+	/**
+	 * Processes the items at a given position: predicts the nonterminals which the items
+	 * expect, completes the recognized nonterminals and scans the terminals. The scanned
+	 * items are added to the sets at the ends of the terminals.
+	 */
+	private void process(int pos) throws ParseException {
+		ItemSet set = sets[pos];
+		for (int k = 0; k < set.size; k++) { // The set grows while it is processed.
+			long item = set.items[k];
+			int state = (int) (item >>> 32);
+			int origin = (int) item;
+			Rule r = states[state];
+			int dot = state - r.state;
+			if (dot < r.rhs.length) {
+				int x = r.rhs[dot];
+				if (rules[x] != null) {
+					LongList l = set.waiting.get(x);
+					if (l == null) {
+						l = new LongList();
+						set.waiting.put(x, l);
+					}
+					l.add(item);
+					predict(set, x, pos);
+					if (nullable[x]) {
+						set.add(state + 1, origin);
+					}
+				} else {
+					int end = scan(set, x, pos);
+					if (end >= 0) {
+						if (sets[end] == null) {
+							sets[end] = new ItemSet();
+						}
+						sets[end].add(state + 1, origin);
+						sets[end].addRecognized(x, pos);
+					}
+				}
+			} else if (origin < pos && !set.recognizedKeys.contains(((long) r.lhs << 32) | origin)) {
+				// The empty derivations are handled on prediction.
+				set.addRecognized(r.lhs, origin);
+				LongList l = sets[origin].waiting.get(r.lhs);
+				if (l != null) {
+					for (int i = 0; i < l.size; i++) {
+						set.add((int) (l.a[i] >>> 32) + 1, (int) l.a[i]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Matches a terminal at a given position (the result is kept in the item set).
+	 * @return the end of the terminal or -1.
+	 */
+	private int scan(ItemSet set, int x, int pos) throws ParseException {
+		Integer end = set.scanned.get(x);
+		if (end == null) {
+			end = scan(symbols.get(x), pos);
+			set.scanned.put(x, end);
+		}
+		return end;
+	}
+
+	private int scan(Tree t, int pos) throws ParseException {
+		Tree res = terminal(t, pos);
+		return res == null ? -1 : res.end;
+	}
+
+	/**
+	 * Matches a terminal at a given position in the way the backtracking parser does.
+	 * @param t the terminal.
+	 * @param pos the position before the whitespace.
+	 * @return the parse tree of the terminal or null if it doesn't match.
+	 */
+	private Tree terminal(Tree t, int pos) throws ParseException {
+		int n = s.length();
+		if (t.type == NodeType.new_line_keyword) {
+			return pos < n && s.charAt(pos) == '\n' ? new Tree(s, pos, pos + 1, t) : null;
+		}
+		int begin = parser.skipWhiteSpace(s, pos, n);
+		if (begin >= n) {
+			return null;
+		}
+		if (t.type == NodeType.token) {
+			if (parser.terminals.matches(t.id, s, begin, n)) {
+				return new Tree(s, begin, begin + parser.terminals.token(t.id).length(), t);
+			}
+			return null;
+		} else if (t.type == NodeType.identifier_keyword) {
+			int i = begin;
+			while (i < n && Character.isJavaIdentifierPart(s.charAt(i))) {
+				i++;
+			}
+			if (i > begin && Character.isJavaIdentifierStart(s.charAt(begin)) && !parser.terminals.keyword(s, begin, i)) {
+				return new Tree(s, begin, i, t);
+			}
+			return null;
+		} else if (t.type == NodeType.token_keyword) {
+			if (s.charAt(begin) != '\'') {
+				return null;
+			}
+			for (int i = begin + 1; i < n; i++) {
+				char ch = s.charAt(i);
+				if (ch == '\\') {
+					i++;
+				} else if (ch == '\'') {
+					return new Tree(s, begin, i + 1, t);
+				}
+			}
+			return null;
+		} else if (t.id >= 0) { // A lexical rule.
+			int end = parser.lexicalRuleIds[t.id].match(s, begin, n);
+			return end < 0 ? null : new Tree(s, begin, end, t);
+		} else {
+			try {
+				return parser.extension(t, s, begin, n);
+			} catch (ParseException ex) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Tells whether a symbol has been recognized in a given substring.
+	 */
+	private boolean recognized(int x, int begin, int end) {
+		if (begin == end) {
+			return nullable[x];
+		}
+		return sets[end] != null && sets[end].isRecognized(x, begin);
+	}
+
+	/**
+	 * Extracts the parse tree of a recognized symbol.
+	 * @param x the symbol.
+	 * @param begin the beginning of the substring (before the whitespace).
+	 * @param end the end of the substring.
+	 * @return the parse tree.
+	 */
+	private Tree build(int x, int begin, int end) throws ParseException {
+		Tree t = symbols.get(x);
+		Rule[] r = rules[x];
+		if (r == null) {
+			return terminal(t, begin);
+		}
+		if (t.type == NodeType.choice) {
+			for (int i = 0; i < r.length; i++) {
+				if (begin == end ? nullable(r[i]) : sets[end].contains(r[i].state + 1, begin)) {
+					Tree res = new Tree(NodeType.choice, t);
+					for (int j = 0; j < i; j++) {
+						res.addBranch(null); // The alternatives before the matched one are null.
+					}
+					res.addBranch(build(r[i].rhs[0], begin, end));
+					return res;
+				}
+			}
+			throw new RuntimeException("No alternative matches");
+		} else if (t.type == NodeType.sequence) {
+			int[] split = split(r[0], begin, end);
+			Tree res = new Tree(NodeType.sequence, t);
+			for (int i = 0; i < r[0].rhs.length; i++) {
+				res.addBranch(build(r[0].rhs[i], split[i], split[i + 1]));
+			}
+			return res;
+		} else if (t.type == NodeType.optional) {
+			int u = r[0].rhs[0];
+			if (begin < end || nullable[u]) {
+				return build(u, begin, end);
+			}
+			return new Tree(s, begin, begin, t);
+		} else if (t.type == NodeType.list) {
+			// The last element is split off until the first one remains.
+			ArrayList<Tree> elems = new ArrayList<Tree>();
+			while (!(begin == end ? nullable(r[0]) : sets[end].contains(r[0].state + 1, begin))) {
+				int[] split = split(r[1], begin, end);
+				elems.add(build(r[1].rhs[2], split[2], split[3]));
+				elems.add(build(r[1].rhs[1], split[1], split[2]));
+				end = split[1];
+			}
+			Tree res = new Tree(NodeType.list, t);
+			res.addBranch(build(r[0].rhs[0], begin, end));
+			for (int i = elems.size() - 1; i >= 0; i--) {
+				res.addBranch(elems.get(i));
+			}
+			return res;
+		} else if (t.type == NodeType.precedence) {
+			return build(r[0].rhs[0], begin, end);
+		} else if (t.type == NodeType.left || t.type == NodeType.right) {
+			if (begin == end ? nullable(r[0]) : sets[end].contains(r[0].state + 1, begin)) {
+				return build(r[0].rhs[0], begin, end); // There is no operator of this level.
+			}
+			for (int i = 1; i < r.length; i++) {
+				if (sets[end].contains(r[i].state + 3, begin)) {
+					int[] split = split(r[i], begin, end);
+					Tree lhs = build(r[i].rhs[0], split[0], split[1]);
+					Tree res;
+					if (lhs.type == NodeType.precedence && Parser.level(lhs.branches.get(1).def) == t) {
+						res = lhs; // The adjacent operators of a left-associative level share a node.
+					} else {
+						res = new Tree(NodeType.precedence, t.parent);
+						res.addBranch(lhs);
+					}
+					res.addBranch(build(r[i].rhs[1], split[1], split[2]));
+					res.addBranch(build(r[i].rhs[2], split[2], split[3]));
+					return res;
+				}
+			}
+			throw new RuntimeException("No operator matches");
+		} else { // A repetition.
+			Tree res = new Tree(s, begin, begin, t);
+			res.type = NodeType.repetition;
+			int[] split = repetition(r[1], begin, end);
+			for (int i = 0; i + 1 < split.length; i++) {
+				res.addBranch(build(r[1].rhs[1], split[i], split[i + 1]));
+			}
+			return res;
+		}
+	}
+
+	/**
+	 * Splits a substring among the symbols of a recognized sequence. Every symbol takes as
+	 * much of the string as possible, from left to right.
+	 * @return the positions where the symbols begin and the end of the substring.
+	 */
+	private int[] split(Rule r, int begin, int end) {
+		int n = r.rhs.length;
+		int[] res = new int[n + 1];
+		if (begin == end) {
+			Arrays.fill(res, begin);
+			return res;
+		}
+		// feasible[i]: the positions where the i-th symbol may begin so that the rest of the sequence ends at 'end'.
+		ArrayList<HashSet<Integer>> feasible = new ArrayList<HashSet<Integer>>();
+		for (int i = 0; i <= n; i++) {
+			feasible.add(new HashSet<Integer>());
+		}
+		feasible.get(n).add(end);
+		for (int i = n - 1; i >= 0; i--) {
+			int x = r.rhs[i];
+			for (int pos : feasible.get(i + 1)) {
+				if (nullable[x] && sets[pos].contains(r.state + i, begin)) {
+					feasible.get(i).add(pos);
+				}
+				IntList l = sets[pos].recognized.get(x);
+				for (int j = 0; l != null && j < l.size; j++) {
+					int b = l.a[j];
+					if (b >= begin && sets[b].contains(r.state + i, begin)) {
+						feasible.get(i).add(b);
+					}
+				}
+			}
+		}
+		res[0] = begin;
+		for (int i = 0; i < n; i++) {
+			int best = -1;
+			for (int pos : feasible.get(i + 1)) {
+				if (pos > best && pos >= res[i] && recognized(r.rhs[i], res[i], pos)) {
+					best = pos;
+				}
+			}
+			res[i + 1] = best;
+		}
+		return res;
+	}
+
+	/**
+	 * Splits a substring among the elements of a recognized repetition X -> X B. Every element
+	 * takes as much of the string as possible, from left to right. The elements are not empty.
+	 * @return the positions where the elements begin and the end of the substring.
+	 */
+	private int[] repetition(Rule r, int begin, int end) {
+		int x = r.rhs[1];
+		HashSet<Integer> feasible = new HashSet<Integer>();
+		feasible.add(end);
+		ArrayList<Integer> queue = new ArrayList<Integer>();
+		queue.add(end);
+		while (queue.size() > 0) {
+			int pos = queue.remove(queue.size() - 1);
+			IntList l = sets[pos].recognized.get(x);
+			for (int j = 0; l != null && j < l.size; j++) {
+				int b = l.a[j];
+				if (b >= begin && b < pos && sets[b].contains(r.state + 1, begin) && feasible.add(b)) {
+					queue.add(b);
+				}
+			}
+		}
+		IntList res = new IntList();
+		res.add(begin);
+		for (int pos = begin; pos < end; ) {
+			int best = -1;
+			for (int e : feasible) {
+				if (e > best && e > pos && recognized(x, pos, e)) {
+					best = e;
+				}
+			}
+			res.add(best);
+			pos = best;
+		}
+		return Arrays.copyOf(res.a, res.size);
+	}
+
+}
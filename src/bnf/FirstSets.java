@@ -0,0 +1,146 @@
+/*
+ * Computes the FIRST sets of the BNF definitions of a parser.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ * Computes the set of terminals with which every BNF expression may begin.<br/>
+ * Terminals are represented by strings:<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- a token is represented by its quoted definition, e.g. 'class';<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- the keywords are represented by their names: IDENTIFIER, TOKEN and NEW_LINE;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- the definitions which are processed by the parser itself
+ * (the ones with null body) are represented by their names, e.g. StringLiteral.<br/>
+ * If an expression may match the empty string then its FIRST set contains EMPTY.
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public class FirstSets {
+
+	/**
+	 * The pseudo-terminal which denotes that an expression may match the empty string.
+	 */
+	public static final String EMPTY = "";
+
+	private Map<String, Tree> definitions;
+
+	private HashMap<String, Set<String>> rules = new HashMap<String, Set<String>>();
+
+	/**
+	 * Computes the FIRST sets of all definitions. Because the definitions may be
+	 * recursive the sets are calculated iteratively until none of them changes.
+	 * @param definitions the definitions of a parser.
+	 */
+	public FirstSets(Map<String, Tree> definitions) {
+		this.definitions = definitions;
+		for (String def : definitions.keySet()) {
+			rules.put(def, new HashSet<String>());
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (String def : definitions.keySet()) {
+				Tree t = definitions.get(def);
+				if (t != null && rules.get(def).addAll(first(t))) {
+					changed = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param def a definition name.
+	 * @return the FIRST set of the given definition.
+	 */
+	public Set<String> rule(String def) {
+		return rules.get(def);
+	}
+
+	/**
+	 * @param t a node of a BNF definition parse tree.
+	 * @return the FIRST set of the expression represented by the given node.
+	 */
+	public Set<String> first(Tree t) {
+		Set<String> res = new HashSet<String>();
+		if (t.type == NodeType.token) {
+			res.add(t.node);
+		} else if (t.type == NodeType.identifier_keyword) {
+			res.add("IDENTIFIER");
+		} else if (t.type == NodeType.token_keyword) {
+			res.add("TOKEN");
+		} else if (t.type == NodeType.new_line_keyword) {
+			res.add("NEW_LINE");
+		} else if (t.type == NodeType.identifier) {
+			if (definitions.get(t.node) == null) {
+				res.add(t.node);
+			} else {
+				res.addAll(rules.get(t.node));
+			}
+		} else if (t.type == NodeType.sequence) {
+			res.add(EMPTY);
+			for (Tree b : t.branches) {
+				res.remove(EMPTY);
+				res.addAll(branch(b));
+				if (!res.contains(EMPTY)) {
+					break;
+				}
+			}
+		} else if (t.type == NodeType.choice) {
+			for (Tree b : t.branches) {
+				res.addAll(branch(b));
+			}
+		} else if (t.type == NodeType.optional || t.type == NodeType.repetition) {
+			res.addAll(branch(t.branches.get(0)));
+			res.add(EMPTY);
+		} else if (t.type == NodeType.list) {
+			res.addAll(branch(t.branches.get(0)));
+			if (res.contains(EMPTY)) {
+				res.add(t.branches.get(1).node); // The first element may be empty.
+			}
+		} else if (t.type == NodeType.precedence) {
+			res.addAll(branch(t.branches.get(0))); // Every operator expression begins with an operand.
+		} else if (t.type == NodeType.left || t.type == NodeType.right) {
+			for (Tree b : t.branches) {
+				res.add(Parser.token(b).node);
+			}
+		} else {
+			throw new RuntimeException("Unknown tree type: " + t.type);
+		}
+		return res;
+	}
+
+	/**
+	 * @param b a branch of a node.
+	 * @return the FIRST set of the branch. The bodies of definitions inlined by GrammarOptimizer
+	 *   are looked up like references to the definitions.
+	 */
+	private Set<String> branch(Tree b) {
+		if (b.parent != null && b.parent.parent == null && definitions.get(b.parent.node) == b) {
+			return rules.get(b.parent.node);
+		}
+		return first(b);
+	}
+
+}
@@ -0,0 +1,491 @@
+/*
+ * Finds the parts of a grammar which make the parser backtrack.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ * A static analysis of the definitions of a parser. It reports:<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- shadowed alternatives: an alternative which is never tried because
+ * an earlier one matches the empty string or a prefix of it (the choices are ordered, so the
+ * earlier alternative wins), e.g. 'a' | 'a' 'b' or '&lt;' | '&lt;=';<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- nullable repetitions: {X} where X matches the empty string, which never ends;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- left recursion: a definition which may begin with itself. The parser stops
+ * such a recursion as infinite, so the recursive alternatives never match. A repetition is suggested
+ * instead, e.g. A: B | A C becomes A: B { C };<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- common prefixes: alternatives which begin with the same expressions, so the
+ * prefix is parsed again for every alternative that fails after it. A left-factored
+ * definition is suggested, e.g. P X | P Y becomes P ( X | Y );<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- the definitions with the highest estimated backtracking cost.<br/>
+ * <br/>
+ * The cost of a choice is estimated as follows: every pair of alternatives whose FIRST sets conflict
+ * may begin at the same position, so the earlier one may be parsed and fail before the later one
+ * is tried. The pair costs one plus the length of the common prefix of the alternatives, which is
+ * parsed twice. The cost of a definition is the sum of the costs of its choices.<br/>
+ * The expressions are compared by their text and the definitions are named by their names, so the
+ * analysis works equally on the definitions as loaded and as optimized by GrammarOptimizer.
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public class GrammarLinter {
+
+	/**
+	 * A finding of the linter.
+	 */
+	public static class Warning {
+
+		public enum Kind {
+			shadowed,
+			nullable_repetition,
+			left_recursion,
+			common_prefix,
+			backtracking
+		}
+
+		public Kind kind;
+
+		/**
+		 * The name of the definition.
+		 */
+		public String rule;
+
+		public String message;
+
+		/**
+		 * A rewritten expression or null.
+		 */
+		public String suggestion;
+
+		public Warning(Kind kind, String rule, String message, String suggestion) {
+			this.kind = kind;
+			this.rule = rule;
+			this.message = message;
+			this.suggestion = suggestion;
+		}
+
+		@Override
+		public String toString() {
+			return kind + " in " + rule + ": " + message + (suggestion == null ? "" : "\n\tsuggestion: " + suggestion);
+		}
+
+	}
+
+	private Parser parser;
+	private Map<String, Tree> definitions;
+	private FirstSets first;
+
+	/**
+	 * The number of the reported most expensive definitions.
+	 */
+	private int costlyRules = 10;
+
+	/**
+	 * The shortest reported common prefix which contains tokens only.
+	 * A prefix with a nonterminal is always reported.
+	 */
+	private int minPrefix = 2;
+
+	/**
+	 * The estimated cost and the number of conflicting pairs of alternatives, by definition name.
+	 */
+	private HashMap<String, long[]> costs;
+
+	/**
+	 * @param parser a parser whose definitions are analyzed.
+	 */
+	public GrammarLinter(Parser parser) {
+		this.parser = parser;
+		this.definitions = parser.definitions;
+		this.first = new FirstSets(definitions);
+	}
+
+	/**
+	 * @param costlyRules the number of the most expensive definitions which are reported (10 by default).
+	 */
+	public void setCostlyRules(int costlyRules) {
+		this.costlyRules = costlyRules;
+	}
+
+	/**
+	 * @param minPrefix the shortest reported common prefix of tokens (2 by default).
+	 */
+	public void setMinPrefix(int minPrefix) {
+		this.minPrefix = minPrefix;
+	}
+
+	/**
+	 * Analyzes the definitions.
+	 * @return the warnings ordered by definition name; the backtracking costs are at the end,
+	 *   from the most expensive definition.
+	 */
+	public List<Warning> lint() {
+		ArrayList<Warning> res = new ArrayList<Warning>();
+		costs = new HashMap<String, long[]>();
+		ArrayList<String> names = new ArrayList<String>();
+		for (String def : definitions.keySet()) {
+			if (definitions.get(def) != null) {
+				names.add(def);
+			}
+		}
+		Collections.sort(names);
+		IdentityHashMap<Tree, Tree> visited = new IdentityHashMap<Tree, Tree>();
+		for (String def : names) {
+			lint(definitions.get(def), res, visited);
+		}
+		leftRecursion(names, res);
+		ArrayList<String> costly = new ArrayList<String>(costs.keySet());
+		Collections.sort(costly, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				long d = costs.get(b)[0] - costs.get(a)[0];
+				return d != 0 ? (d > 0 ? 1 : -1) : a.compareTo(b);
+			}
+		});
+		for (int i = 0; i < costly.size() && i < costlyRules; i++) {
+			long[] c = costs.get(costly.get(i));
+			res.add(new Warning(Warning.Kind.backtracking, costly.get(i), "estimated cost " + c[0] + ", " + c[1] +
+					" pairs of alternatives may begin at the same position", null));
+		}
+		return res;
+	}
+
+	/**
+	 * @return the warnings of lint(), one per line.
+	 */
+	public String report() {
+		StringBuffer buff = new StringBuffer();
+		for (Warning w : lint()) {
+			buff.append(w);
+			buff.append('\n');
+		}
+		return buff.toString();
+	}
+
+	private void lint(Tree t, List<Warning> res, IdentityHashMap<Tree, Tree> visited) {
+		if (visited.put(t, t) != null) {
+			return; // A body inlined by GrammarOptimizer is analyzed once.
+		}
+		if (t.type == NodeType.choice) {
+			choice(t, res);
+		} else if (t.type == NodeType.repetition && nullable(t.branches.get(0))) {
+			res.add(new Warning(Warning.Kind.nullable_repetition, rule(t), t.node + " never ends because " +
+					text(t.branches.get(0)) + " matches the empty string", null));
+		}
+		for (Tree b : t.branches) {
+			if (b != null) {
+				lint(b, res, visited);
+			}
+		}
+	}
+
+	/**
+	 * Reports the definitions which may begin with themselves.
+	 */
+	private void leftRecursion(List<String> names, List<Warning> res) {
+		HashMap<String, Set<String>> left = new HashMap<String, Set<String>>();
+		for (String def : names) {
+			Set<String> l = new HashSet<String>();
+			left(definitions.get(def), definitions.get(def), l);
+			left.put(def, l);
+		}
+		for (String def : names) {
+			// The definitions which may begin the definition, directly or through other definitions.
+			HashSet<String> reached = new HashSet<String>(left.get(def));
+			ArrayList<String> queue = new ArrayList<String>(reached);
+			while (queue.size() > 0 && !reached.contains(def)) {
+				Set<String> l = left.get(queue.remove(queue.size() - 1));
+				for (String u : l == null ? new HashSet<String>() : l) {
+					if (reached.add(u)) {
+						queue.add(u);
+					}
+				}
+			}
+			if (reached.contains(def)) {
+				res.add(new Warning(Warning.Kind.left_recursion, def, def + " may begin with itself, so its recursive alternatives never match",
+						repetition(def)));
+			}
+		}
+	}
+
+	/**
+	 * Collects the names of the definitions with which an expression may begin.
+	 * @param root the body of the definition whose expression is examined.
+	 */
+	private void left(Tree t, Tree root, Set<String> res) {
+		if (t != root && body(t)) {
+			res.add(t.parent.node);
+		} else if (t.type == NodeType.identifier) {
+			res.add(t.node);
+		} else if (t.type == NodeType.sequence) {
+			for (Tree b : t.branches) {
+				left(b, root, res);
+				if (!nullable(b)) {
+					break;
+				}
+			}
+		} else if (t.type == NodeType.choice) {
+			for (Tree b : t.branches) {
+				left(b, root, res);
+			}
+		} else if (t.type == NodeType.optional || t.type == NodeType.repetition ||
+				t.type == NodeType.list || t.type == NodeType.precedence) {
+			left(t.branches.get(0), root, res);
+		}
+	}
+
+	/**
+	 * @return a definition A: B | A C rewritten as B { C } or null if the definition is not
+	 *   a choice with directly left-recursive alternatives.
+	 */
+	private String repetition(String def) {
+		Tree t = definitions.get(def);
+		if (t.type != NodeType.choice) {
+			return null;
+		}
+		ArrayList<String> base = new ArrayList<String>();
+		ArrayList<String> rest = new ArrayList<String>();
+		for (Tree b : t.branches) {
+			List<Tree> l = elements(b);
+			if (l.size() > 1 && text(l.get(0)).equals(def)) {
+				rest.add(text(l, 1, l.size()));
+			} else {
+				base.add(text(b));
+			}
+		}
+		if (base.size() == 0 || rest.size() == 0) {
+			return null;
+		}
+		return alternatives(base) + " { " + join(rest) + " }";
+	}
+
+	private String alternatives(List<String> l) {
+		return l.size() == 1 ? l.get(0) : "( " + join(l) + " )";
+	}
+
+	private String join(List<String> l) {
+		StringBuffer buff = new StringBuffer();
+		for (String s : l) {
+			buff.append(buff.length() > 0 ? " | " : "");
+			buff.append(s);
+		}
+		return buff.toString();
+	}
+
+	private void choice(Tree t, List<Warning> res) {
+		int n = t.branches.size();
+		ArrayList<List<Tree>> alts = new ArrayList<List<Tree>>();
+		for (Tree b : t.branches) {
+			alts.add(elements(b));
+		}
+
+		// Shadowed alternatives.
+		boolean[] shadowed = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			if (shadowed[i]) {
+				continue;
+			}
+			if (i < n - 1 && nullable(t.branches.get(i))) {
+				res.add(new Warning(Warning.Kind.shadowed, rule(t), "the alternatives after " + alternative(t, i) +
+						" are never tried because it matches the empty string", "move " + alternative(t, i) + " to the end"));
+				for (int j = i + 1; j < n; j++) {
+					shadowed[j] = true;
+				}
+				break;
+			}
+			for (int j = i + 1; j < n; j++) {
+				if (!shadowed[j] && prefix(alts.get(i), alts.get(j))) {
+					shadowed[j] = true;
+					res.add(new Warning(Warning.Kind.shadowed, rule(t), alternative(t, j) + " is never tried because " +
+							alternative(t, i) + " matches its prefix", "move " + alternative(t, j) + " before " + alternative(t, i)));
+				}
+			}
+		}
+
+		// Common prefixes of the alternatives with the same first element.
+		boolean[] grouped = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			if (shadowed[i] || grouped[i] || alts.get(i).size() == 0) {
+				continue;
+			}
+			ArrayList<Integer> group = new ArrayList<Integer>();
+			group.add(i);
+			int k = alts.get(i).size();
+			for (int j = i + 1; j < n; j++) {
+				if (!shadowed[j] && !grouped[j] && commonPrefix(alts.get(i), alts.get(j)) > 0) {
+					group.add(j);
+					k = Math.min(k, commonPrefix(alts.get(i), alts.get(j)));
+				}
+			}
+			if (group.size() < 2) {
+				continue;
+			}
+			boolean nonterminal = false;
+			for (int m = 0; m < k; m++) {
+				nonterminal |= alts.get(i).get(m).type != NodeType.token;
+			}
+			if (k < minPrefix && !nonterminal) {
+				continue;
+			}
+			StringBuffer names = new StringBuffer();
+			for (int j : group) {
+				grouped[j] = true;
+				names.append(names.length() > 0 ? ", " : "");
+				names.append(alternative(t, j));
+			}
+			res.add(new Warning(Warning.Kind.common_prefix, rule(t), names + " begin with " + text(alts.get(i), 0, k) +
+					" which is parsed again for every alternative that fails", leftFactor(alts, group, k)));
+		}
+
+		// Backtracking cost.
+		long cost = 0, pairs = 0;
+		for (int j = 1; j < n; j++) {
+			for (int i = 0; i < j; i++) {
+				if (!shadowed[i] && !shadowed[j] &&
+						!parser.disjoint(first.first(t.branches.get(i)), first.first(t.branches.get(j)))) {
+					cost += 1 + commonPrefix(alts.get(i), alts.get(j));
+					pairs++;
+				}
+			}
+		}
+		if (pairs > 0) {
+			long[] c = costs.get(rule(t));
+			if (c == null) {
+				c = new long[2];
+				costs.put(rule(t), c);
+			}
+			c[0] += cost;
+			c[1] += pairs;
+		}
+	}
+
+	/**
+	 * @return the left-factored alternatives of a group, e.g. P ( X | Y ) or P [ X ] if one of them is P.
+	 */
+	private String leftFactor(List<List<Tree>> alts, List<Integer> group, int k) {
+		StringBuffer rest = new StringBuffer();
+		boolean empty = false;
+		for (int j : group) {
+			List<Tree> alt = alts.get(j);
+			if (alt.size() == k) {
+				empty = true;
+			} else {
+				rest.append(rest.length() > 0 ? " | " : "");
+				rest.append(text(alt, k, alt.size()));
+			}
+		}
+		return text(alts.get(group.get(0)), 0, k) + (empty ? " [ " : " ( ") + rest + (empty ? " ]" : " )");
+	}
+
+	/**
+	 * Tells whether an alternative matches whenever another one matches, i.e. its elements are
+	 * the same as the first elements of the other one, except that its last element may be a token
+	 * which is a prefix of the corresponding token of the other one.
+	 */
+	private boolean prefix(List<Tree> p, List<Tree> q) {
+		if (p.size() == 0 || p.size() > q.size()) {
+			return false;
+		}
+		int last = p.size() - 1;
+		if (commonPrefix(p, q) < last) {
+			return false;
+		}
+		Tree a = p.get(last);
+		Tree b = q.get(last);
+		if (text(a).equals(text(b))) {
+			return true;
+		}
+		return a.type == NodeType.token && b.type == NodeType.token &&
+				b.node.startsWith(a.node.substring(0, a.node.length() - 1)) && !parser.disjoint(a.node, b.node);
+	}
+
+	private int commonPrefix(List<Tree> p, List<Tree> q) {
+		int k = 0;
+		while (k < p.size() && k < q.size() && text(p.get(k)).equals(text(q.get(k)))) {
+			k++;
+		}
+		return k;
+	}
+
+	/**
+	 * @return the elements of an alternative: the branches of a sequence or the alternative itself.
+	 *   A sequence which is the body of a definition is an element (named by the definition).
+	 */
+	private List<Tree> elements(Tree t) {
+		ArrayList<Tree> res = new ArrayList<Tree>();
+		if (t.type == NodeType.sequence && !body(t)) {
+			res.addAll(t.branches);
+		} else {
+			res.add(t);
+		}
+		return res;
+	}
+
+	private boolean nullable(Tree t) {
+		return body(t) ? first.rule(t.parent.node).contains(FirstSets.EMPTY) : first.first(t).contains(FirstSets.EMPTY);
+	}
+
+	/**
+	 * @return 'true' if the node is the body of a definition (possibly inlined into another one).
+	 */
+	private boolean body(Tree t) {
+		return t.parent != null && t.parent.parent == null && definitions.get(t.parent.node) == t;
+	}
+
+	/**
+	 * @return the text of an expression; the body of a definition is denoted by the name of the definition.
+	 */
+	private String text(Tree t) {
+		return body(t) ? t.parent.node : t.node;
+	}
+
+	private String text(List<Tree> l, int begin, int end) {
+		StringBuffer buff = new StringBuffer();
+		for (int i = begin; i < end; i++) {
+			buff.append(i > begin ? " " : "");
+			buff.append(text(l.get(i)));
+		}
+		return buff.toString();
+	}
+
+	/**
+	 * @return the name of the definition to which a node of a definition belongs.
+	 */
+	private String rule(Tree t) {
+		while (t.parent != null) {
+			t = t.parent;
+		}
+		return t.node;
+	}
+
+	private String alternative(Tree choice, int i) {
+		return "alternative " + i + " (" + text(choice.branches.get(i)).replace('\n', ' ') + ")";
+	}
+
+}
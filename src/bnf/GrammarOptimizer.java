@@ -0,0 +1,262 @@
+/*
+ * Optimizes the BNF definitions of a parser.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ *
+ * Rewrites the BNF definitions of a parser so that they are parsed with fewer calls:<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- lists(): the separated lists X { ',' X } become nodes of type 'list',
+ * which the parser matches with a loop;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- inline(): the references to definitions are replaced by the
+ * bodies of the definitions (except one reference in every cycle of recursive definitions),
+ * so the parser doesn't look the definitions up;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- collapseOptionals(): optionals of expressions which never fail
+ * (optionals and repetitions) are replaced by the expressions;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- flatten(): the sequences in sequences and the choices in choices are merged.<br/>
+ * A list is parsed into a single node whose branches are the elements and the separators,
+ * so this changes the parse trees of the lists. Inlining and collapsing don't change the parse trees at all. Flattening saves tree nodes but changes
+ * the branch numbers, so it is for the parsers whose consumers don't navigate the trees by
+ * branch numbers.<br/>
+ * The bodies are shared, not copied, and every node keeps its parent, so the definition
+ * to which a node belongs is still known (see Tree.rule()). Thus the definitions become
+ * a directed acyclic graph: the code which walks them should not process a shared body twice.
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public class GrammarOptimizer {
+
+	private Map<String, Tree> definitions;
+
+	/**
+	 * The number of replaced nodes.
+	 */
+	private int lists, inlined, collapsed, flattened;
+
+	/**
+	 * @param definitions the definitions of a parser. They should be compiled already.
+	 */
+	public GrammarOptimizer(Map<String, Tree> definitions) {
+		this.definitions = definitions;
+	}
+
+	/**
+	 * Converts the sequences of two elements X { sep X }, where 'sep' is a token and both X
+	 * are the same expression, into nodes of type 'list' whose branches are X and 'sep'.
+	 * The nodes are converted in place, so a list which is the body of a definition still
+	 * points at its name. Should be called before inline(), because the expressions are compared
+	 * by their text.
+	 */
+	public void lists() {
+		IdentityHashMap<Tree, Tree> visited = new IdentityHashMap<Tree, Tree>();
+		for (Tree t : definitions.values()) {
+			if (t != null) {
+				lists(t, visited);
+			}
+		}
+	}
+
+	private void lists(Tree t, IdentityHashMap<Tree, Tree> visited) {
+		if (visited.put(t, t) != null) {
+			return;
+		}
+		for (Tree b : t.branches) {
+			lists(b, visited);
+		}
+		if (t.type != NodeType.sequence || t.branches.size() != 2) {
+			return;
+		}
+		Tree rep = t.branches.get(1);
+		if (rep.type != NodeType.repetition || rep.branches.get(0).type != NodeType.sequence ||
+				rep.branches.get(0).branches.size() != 2) {
+			return;
+		}
+		Tree sep = rep.branches.get(0).branches.get(0);
+		Tree x = rep.branches.get(0).branches.get(1);
+		if (sep.type == NodeType.token && x.type == t.branches.get(0).type && x.node.equals(t.branches.get(0).node)) {
+			t.type = NodeType.list;
+			t.branches.set(1, sep);
+			sep.parent = t;
+			lists++;
+		}
+	}
+
+	/**
+	 * Replaces the references to definitions with their bodies unless a body would contain
+	 * itself, i.e. in every cycle of recursive definitions one reference is kept. A body which is
+	 * a reference itself is followed, e.g. a reference to StatementExpression (whose body is
+	 * Expression) becomes the reference to Expression or the body of Expression.
+	 */
+	public void inline() {
+		ArrayList<String> names = new ArrayList<String>(definitions.keySet());
+		Collections.sort(names); // The kept references don't depend on the order of the hash map.
+		IdentityHashMap<Tree, Tree> visited = new IdentityHashMap<Tree, Tree>();
+		for (String def : names) {
+			if (definitions.get(def) != null) {
+				inline(definitions.get(def), visited);
+			}
+		}
+	}
+
+	private void inline(Tree t, IdentityHashMap<Tree, Tree> visited) {
+		if (visited.put(t, t) != null) {
+			return; // A body inlined in several places is processed once.
+		}
+		for (int i = 0; i < t.branches.size(); i++) {
+			Tree b = t.branches.get(i);
+			Tree body = b;
+			while (body.type == NodeType.identifier && definitions.get(body.node) != null &&
+					!reaches(definitions.get(body.node), t, new IdentityHashMap<Tree, Tree>())) {
+				body = definitions.get(body.node);
+			}
+			if (body != b) {
+				t.branches.set(i, body); // The body keeps its parent.
+				inlined++;
+			}
+			inline(body, visited);
+		}
+	}
+
+	/**
+	 * Tells whether a node may be reached from another one through the branches
+	 * (including the inlined bodies).
+	 */
+	private boolean reaches(Tree from, Tree to, IdentityHashMap<Tree, Tree> visited) {
+		if (from == to) {
+			return true;
+		}
+		if (visited.put(from, from) != null) {
+			return false;
+		}
+		for (Tree b : from.branches) {
+			if (reaches(b, to, visited)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Replaces the optionals whose expression never fails, e.g. [{X}] or [[X]], with their
+	 * expressions. Such an optional returns the tree of its expression anyway.
+	 * The bodies of the definitions are not replaced, so they keep pointing at their names.
+	 */
+	public void collapseOptionals() {
+		IdentityHashMap<Tree, Tree> visited = new IdentityHashMap<Tree, Tree>();
+		for (Tree t : definitions.values()) {
+			if (t != null) {
+				collapseOptionals(t, visited);
+			}
+		}
+	}
+
+	private void collapseOptionals(Tree t, IdentityHashMap<Tree, Tree> visited) {
+		if (visited.put(t, t) != null) {
+			return;
+		}
+		for (int i = 0; i < t.branches.size(); i++) {
+			Tree b = t.branches.get(i);
+			while (b.type == NodeType.optional &&
+					(b.branches.get(0).type == NodeType.optional || b.branches.get(0).type == NodeType.repetition)) {
+				b = b.branches.get(0);
+			}
+			if (b != t.branches.get(i)) {
+				t.branches.set(i, b);
+				collapsed++;
+			}
+			collapseOptionals(b, visited);
+		}
+	}
+
+	/**
+	 * Merges the sequences which are elements of sequences and the choices which are
+	 * alternatives of choices, e.g. 'if' ParExpression Statement becomes
+	 * 'if' '(' Expression ')' Statement when ParExpression is inlined.<br/>
+	 * This changes the shape of the parse trees.
+	 */
+	public void flatten() {
+		IdentityHashMap<Tree, Tree> visited = new IdentityHashMap<Tree, Tree>();
+		for (Tree t : definitions.values()) {
+			if (t != null) {
+				flatten(t, visited);
+			}
+		}
+	}
+
+	private void flatten(Tree t, IdentityHashMap<Tree, Tree> visited) {
+		if (visited.put(t, t) != null) {
+			return;
+		}
+		boolean nested = false;
+		for (Tree b : t.branches) {
+			flatten(b, visited); // The inner nodes are flattened first.
+			nested |= (t.type == NodeType.sequence || t.type == NodeType.choice) && b.type == t.type;
+		}
+		if (t.parent != null && (t.parent.type == NodeType.left || t.parent.type == NodeType.right)) {
+			nested = false; // A postfix operator is a sequence of its token and its operand.
+		}
+		if (nested) {
+			ArrayList<Tree> branches = new ArrayList<Tree>();
+			for (Tree b : t.branches) {
+				if (b.type == t.type) {
+					branches.addAll(b.branches); // The merged nodes keep their parents.
+					flattened++;
+				} else {
+					branches.add(b);
+				}
+			}
+			t.branches = branches;
+		}
+	}
+
+	/**
+	 * @return the number of the separated lists.
+	 */
+	public int getLists() {
+		return lists;
+	}
+
+	/**
+	 * @return the number of the inlined references.
+	 */
+	public int getInlined() {
+		return inlined;
+	}
+
+	/**
+	 * @return the number of the collapsed optionals.
+	 */
+	public int getCollapsed() {
+		return collapsed;
+	}
+
+	/**
+	 * @return the number of the merged sequences and choices.
+	 */
+	public int getFlattened() {
+		return flattened;
+	}
+
+}
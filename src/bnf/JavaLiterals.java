@@ -0,0 +1,380 @@
+/*
+ * Scanners for the Java literals.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+import util.CharScanner;
+
+/**
+ *
+ * Lexical rules for the Java literals as described in the JLS:<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- IntegerLiteral: decimal, hex (0x), octal (leading 0) and binary (0b)
+ * numerals with underscores between the digits and an optional 'l' suffix;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- FloatingPointLiteral: decimal and hexadecimal floating point
+ * numerals with optional exponent and 'f'/'d' suffix;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- CharacterLiteral: a character or an escape sequence in single quotes;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- StringLiteral: a string in double quotes or a text block.<br/>
+ * <br/>
+ * A number is scanned once per position: the scanner finds where the numeral ends and
+ * whether it is an integer or a floating point numeral, so when FloatingPointLiteral
+ * fails on an integer the following IntegerLiteral doesn't read the digits again.<br/>
+ * None of the scanners allocates memory.
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public class JavaLiterals {
+
+	/**
+	 * The characters at which the scanning of a string literal or a text block stops.
+	 * The other characters are skipped by CharScanner several at a time.
+	 */
+	private static final String STRING_STOPS = "\"\\\n\r";
+	private static final String TEXT_BLOCK_STOPS = "\"\\";
+
+	/**
+	 * The last scanned number.
+	 */
+	private CharSequence scanned;
+	private int scannedBegin = -1, scannedEnd;
+	private int numberEnd;
+	private boolean floatingPoint;
+
+	public final LexicalRule integerLiteral = new LexicalRule() {
+		@Override
+		public int match(CharSequence s, int begin, int end) {
+			return number(s, begin, end) >= 0 && !floatingPoint ? numberEnd : -1;
+		}
+	};
+
+	public final LexicalRule floatingPointLiteral = new LexicalRule() {
+		@Override
+		public int match(CharSequence s, int begin, int end) {
+			return number(s, begin, end) >= 0 && floatingPoint ? numberEnd : -1;
+		}
+	};
+
+	public final LexicalRule characterLiteral = new LexicalRule() {
+		@Override
+		public int match(CharSequence s, int begin, int end) {
+			return character(s, begin, end);
+		}
+	};
+
+	public final LexicalRule stringLiteral = new LexicalRule() {
+		@Override
+		public int match(CharSequence s, int begin, int end) {
+			return string(s, begin, end);
+		}
+	};
+
+	/**
+	 * Scans a number. The result is kept in numberEnd and floatingPoint.
+	 * @return the end of the number or -1.
+	 */
+	private int number(CharSequence s, int begin, int end) {
+		if (s == scanned && begin == scannedBegin && end == scannedEnd) {
+			return numberEnd;
+		}
+		scanned = s;
+		scannedBegin = begin;
+		scannedEnd = end;
+		floatingPoint = false;
+		numberEnd = scanNumber(s, begin, end);
+		if (numberEnd >= 0 && numberEnd < end && Character.isJavaIdentifierPart(s.charAt(numberEnd))) {
+			numberEnd = -1; // A number may not be followed by a letter, a digit or an underscore.
+		}
+		return numberEnd;
+	}
+
+	private int scanNumber(CharSequence s, int begin, int end) {
+		char ch = s.charAt(begin);
+		if (ch == '0' && begin + 1 < end) {
+			char next = s.charAt(begin + 1);
+			if (next == 'x' || next == 'X') {
+				return hexNumber(s, begin + 2, end);
+			}
+			if (next == 'b' || next == 'B') {
+				int pos = digits(s, begin + 2, end, 2);
+				return pos < 0 ? -1 : integerSuffix(s, pos, end);
+			}
+		}
+		if (ch == '.') {
+			int pos = digits(s, begin + 1, end, 10);
+			if (pos < 0) {
+				return -1;
+			}
+			floatingPoint = true;
+			return floatSuffix(s, exponent(s, pos, end, 'e', 'E'), end);
+		}
+		int pos = digits(s, begin, end, 10);
+		if (pos < 0) {
+			return -1;
+		}
+		int res = pos;
+		if (pos < end && s.charAt(pos) == '.') {
+			floatingPoint = true;
+			res = pos + 1;
+			if (res < end && digit(s.charAt(res), 10)) {
+				res = digits(s, res, end, 10);
+				if (res < 0) {
+					return -1;
+				}
+			}
+		}
+		int exp = exponent(s, res, end, 'e', 'E');
+		if (exp < 0) {
+			return -1;
+		}
+		if (exp > res) {
+			floatingPoint = true;
+			res = exp;
+		}
+		if (res < end && "fFdD".indexOf(s.charAt(res)) >= 0) {
+			floatingPoint = true;
+			return res + 1;
+		}
+		if (floatingPoint) {
+			return res;
+		}
+		if (ch == '0' && pos > begin + 1 && !octal(s, begin + 1, pos)) {
+			return -1; // Octal numerals contain octal digits only.
+		}
+		return integerSuffix(s, pos, end);
+	}
+
+	private int hexNumber(CharSequence s, int begin, int end) {
+		int pos = begin;
+		boolean mantissa = false;
+		if (pos < end && digit(s.charAt(pos), 16)) {
+			pos = digits(s, pos, end, 16);
+			if (pos < 0) {
+				return -1;
+			}
+			mantissa = true;
+		}
+		boolean period = pos < end && s.charAt(pos) == '.';
+		if (period) {
+			pos++;
+			if (pos < end && digit(s.charAt(pos), 16)) {
+				pos = digits(s, pos, end, 16);
+				if (pos < 0) {
+					return -1;
+				}
+				mantissa = true;
+			}
+		}
+		if (!mantissa) {
+			return -1;
+		}
+		int exp = exponent(s, pos, end, 'p', 'P');
+		if (exp < 0 || (period && exp == pos)) {
+			return -1; // A hexadecimal floating point numeral must have a binary exponent.
+		}
+		if (exp == pos) {
+			return integerSuffix(s, pos, end);
+		}
+		floatingPoint = true;
+		return floatSuffix(s, exp, end);
+	}
+
+	/**
+	 * Scans an optional exponent.
+	 * @return the end of the exponent, 'pos' if there is no exponent or -1 if the exponent is invalid.
+	 */
+	private int exponent(CharSequence s, int pos, int end, char lower, char upper) {
+		if (pos < 0 || pos >= end || (s.charAt(pos) != lower && s.charAt(pos) != upper)) {
+			return pos;
+		}
+		int res = pos + 1;
+		if (res < end && (s.charAt(res) == '+' || s.charAt(res) == '-')) {
+			res++;
+		}
+		return digits(s, res, end, 10);
+	}
+
+	private int floatSuffix(CharSequence s, int pos, int end) {
+		if (pos >= 0 && pos < end && "fFdD".indexOf(s.charAt(pos)) >= 0) {
+			return pos + 1;
+		}
+		return pos;
+	}
+
+	private int integerSuffix(CharSequence s, int pos, int end) {
+		if (pos < end && (s.charAt(pos) == 'l' || s.charAt(pos) == 'L')) {
+			return pos + 1;
+		}
+		return pos;
+	}
+
+	/**
+	 * Scans digits which may be separated by underscores.
+	 * @return the end of the digits or -1 if there are no digits or an underscore is not between digits.
+	 */
+	private int digits(CharSequence s, int pos, int end, int radix) {
+		if (pos >= end || !digit(s.charAt(pos), radix)) {
+			return -1;
+		}
+		int last = pos;
+		for (pos++; pos < end; pos++) {
+			char ch = s.charAt(pos);
+			if (digit(ch, radix)) {
+				last = pos;
+			} else if (ch != '_') {
+				break;
+			}
+		}
+		return last + 1 == pos ? pos : -1;
+	}
+
+	private boolean octal(CharSequence s, int begin, int end) {
+		for (int i = begin; i < end; i++) {
+			char ch = s.charAt(i);
+			if (ch != '_' && (ch < '0' || ch > '7')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean digit(char ch, int radix) {
+		if (radix == 16) {
+			return (ch >= '0' && ch <= '9') || (ch >= 'a' && ch <= 'f') || (ch >= 'A' && ch <= 'F');
+		}
+		return ch >= '0' && ch < '0' + radix;
+	}
+
+	/**
+	 * Scans a character literal.
+	 * @return the end of the literal or -1.
+	 */
+	private static int character(CharSequence s, int begin, int end) {
+		if (s.charAt(begin) != '\'' || begin + 1 >= end) {
+			return -1;
+		}
+		char ch = s.charAt(begin + 1);
+		int pos;
+		if (ch == '\\') {
+			pos = escape(s, begin + 1, end);
+		} else if (ch == '\'' || ch == '\n' || ch == '\r') {
+			return -1;
+		} else {
+			pos = begin + 2;
+		}
+		return pos >= 0 && pos < end && s.charAt(pos) == '\'' ? pos + 1 : -1;
+	}
+
+	/**
+	 * Scans a string literal or a text block.
+	 * @return the end of the literal or -1.
+	 */
+	private static int string(CharSequence s, int begin, int end) {
+		if (s.charAt(begin) != '"') {
+			return -1;
+		}
+		if (begin + 2 < end && s.charAt(begin + 1) == '"' && s.charAt(begin + 2) == '"') {
+			return textBlock(s, begin + 3, end);
+		}
+		for (int i = begin + 1; i < end; ) {
+			i = CharScanner.indexOfAny(s, STRING_STOPS, i, end);
+			if (i < 0) {
+				return -1;
+			}
+			char ch = s.charAt(i);
+			if (ch == '"') {
+				return i + 1;
+			} else if (ch == '\n' || ch == '\r') {
+				return -1; // A string literal may not exceed the line.
+			} else { // A backslash.
+				i = escape(s, i, end);
+				if (i < 0) {
+					return -1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static int textBlock(CharSequence s, int pos, int end) {
+		// The opening delimiter is followed by optional white space and a line terminator.
+		while (pos < end && (s.charAt(pos) == ' ' || s.charAt(pos) == '\t' || s.charAt(pos) == '\f')) {
+			pos++;
+		}
+		if (pos >= end || (s.charAt(pos) != '\n' && s.charAt(pos) != '\r')) {
+			return -1;
+		}
+		for (int i = pos; i < end; ) {
+			i = CharScanner.indexOfAny(s, TEXT_BLOCK_STOPS, i, end);
+			if (i < 0) {
+				return -1;
+			}
+			char ch = s.charAt(i);
+			if (ch == '"' && i + 2 < end && s.charAt(i + 1) == '"' && s.charAt(i + 2) == '"') {
+				return i + 3;
+			} else if (ch == '\\') {
+				i = i + 1 < end && (s.charAt(i + 1) == '\n' || s.charAt(i + 1) == '\r') ? i + 2 : escape(s, i, end);
+				if (i < 0) {
+					return -1;
+				}
+			} else {
+				i++;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Scans an escape sequence.
+	 * @param pos the position of the backslash.
+	 * @return the position after the escape sequence or -1 if it is invalid.
+	 */
+	private static int escape(CharSequence s, int pos, int end) {
+		pos++;
+		if (pos >= end) {
+			return -1;
+		}
+		char ch = s.charAt(pos);
+		if ("btnfrs\"'\\".indexOf(ch) >= 0) {
+			return pos + 1;
+		}
+		if (ch == 'u') {
+			while (pos < end && s.charAt(pos) == 'u') {
+				pos++;
+			}
+			for (int i = 0; i < 4; i++, pos++) {
+				if (pos >= end || !digit(s.charAt(pos), 16)) {
+					return -1;
+				}
+			}
+			return pos;
+		}
+		if (ch >= '0' && ch <= '7') {
+			// Octal escape: up to three digits if the first one is in [0..3], otherwise up to two.
+			int max = ch <= '3' ? 3 : 2;
+			int n = 0;
+			while (n < max && pos < end && s.charAt(pos) >= '0' && s.charAt(pos) <= '7') {
+				pos++;
+				n++;
+			}
+			return pos;
+		}
+		return -1;
+	}
+
+}
@@ -19,12 +19,10 @@
 
 package bnf;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
+
+import util.CharScanner;
 
 /**
  * This is a Java parser based on BNF definition parser which uses
@@ -42,58 +40,40 @@ public class JavaParser extends Parser {
 	 */
 	public JavaParser() throws ParserInitializationException {
 		super();
+		File profile = new File("java.profile");
+		if (profile.exists()) {
+			try {
+				applyProfile(ChoiceProfile.load(profile));
+			} catch (IOException ex) {
+				throw new ParserInitializationException(ex);
+			}
+		}
 	}
 	
 	@Override
 	public void initialize() throws ParserInitializationException {
 		try {
-			BufferedReader inp = new BufferedReader(new FileReader("java.bnf"));
-			StringBuffer buff = new StringBuffer();
-			int colon = -1;
-			while (true) {
-				String line = inp.readLine();
-				if (line == null) {
-					break;
-				}
-				line = line.trim();
-				if (line.length() == 0) {
-					continue;
-				}
-				int newColon = line.indexOf(':');
-				boolean idBeforeColon = newColon >= 0;
-				for (int i = 0; i < newColon; i++) {
-					if (!Character.isJavaIdentifierPart(line.charAt(i))) {
-						idBeforeColon = false;
-						break;
-					}
-				}
-				if (idBeforeColon) {
-					if (buff.length() > 0) {
-						putDefinition(buff.toString().trim(), colon);
-						buff.delete(0, buff.length());
-					}
-					colon = newColon;
-				}
-				buff.append(line);
-				buff.append('\n');
-			}
-			if (buff.length() > 0) {
-				putDefinition(buff.toString(), colon);
-			}
-			inp.close();
+			definitions.putAll(BnfDefParser.parseDefinitions(new File("java.bnf")));
 		} catch (IOException ex) {
 			throw new ParserInitializationException(ex);
 		} catch (ParseException ex) {
 			throw new ParserInitializationException(ex);
 		}
 
-		// Enter fictive definitions for StringLiteral, IntegerLiteral, CharacterLiteral, FloatingPointLiteral
-		// in order an exception not to be thrown by checkForMissingDefinitions().
-		// These definitions will be processed separately by the JavParser.
-		definitions.put("StringLiteral", null);
-		definitions.put("IntegerLiteral", null);
-		definitions.put("CharacterLiteral", null);
-		definitions.put("FloatingPointLiteral", null);
+		// The literals are recognized by lexical rules instead of BNF definitions.
+		JavaLiterals literals = new JavaLiterals();
+		lexicalRule("StringLiteral", literals.stringLiteral);
+		lexicalRule("IntegerLiteral", literals.integerLiteral);
+		lexicalRule("CharacterLiteral", literals.characterLiteral);
+		lexicalRule("FloatingPointLiteral", literals.floatingPointLiteral);
+
+		// In the recovering mode a syntax error is skipped up to the next declaration or statement.
+		syncRule("ImportDeclaration");
+		syncRule("TypeDeclaration");
+		syncRule("ClassBodyDeclaration");
+		syncRule("InterfaceBodyDeclaration");
+		syncRule("BlockStatement");
+		syncToken(";");
 	}
 	
 	public ParseTree parse(String path) throws ParseException {
@@ -104,151 +84,37 @@ public class JavaParser extends Parser {
 		return parse("CompilationUnit", f);
 	}
 
-	private void putDefinition(String s, int colon) throws ParseException {
-		String def = s.substring(0, colon);
-		Tree t = BnfDefParser.parse(s.substring(colon + 1).trim());
-		t.parent = new Tree(def, 0, def.length(), null);
-		definitions.put(def, t);
-	}
-
 	@Override
-	protected Tree extension(Tree t, String s, int begin, int end) throws ParseException {
-		if (begin >= end) {
-			return null;
-		}
-		if (t.node.equals("StringLiteral")) {
-			return string(t, s, begin, end);
-		} else if (t.node.equals("IntegerLiteral")) {
-			return number(t, s, begin, end);
-		} else if (t.node.equals("CharacterLiteral")) {
-			return string(t, s, begin, end);
-		} else if (t.node.equals("FloatingPointLiteral")) {
-			return number(t, s, begin, end);
-		} else {
-			return null; // Not an extension of this parser.
-		}
-	}
-
-	private Tree string(Tree t, String s, int begin, int end) throws ParseException {
-		char quote = s.charAt(begin);
-		if (t.node.equals("CharacterLiteral") && quote != '\'') {
-			return null;
-		}
-		if (t.node.equals("StringLiteral") && quote != '"') {
-			return null;
-		}
-		for (int i = begin + 1; i < end; i++) {
-			char ch = s.charAt(i);
-			if (ch == '\\') {
-				i++;
-			} else if (ch == '\n') {
-				throw new ParseException("String constant exceeds line at " + pos(i));
-			} else if (ch == quote) {
-				return new Tree(s, begin, i + 1, t);
-			}
-		}
-		return null;
-	}
-
-	private Tree number(Tree t, String s, int begin, int end) throws ParseException {
-		boolean digits = false;
-		int pos = begin;
-		if (pos < end && (s.charAt(pos) == '+' || s.charAt(pos) == '-')) {
-			pos++;
-		}
-		boolean period = false;
-		if (t.node.equals("FloatingPointLiteral") && pos < end && s.charAt(pos) == '.') {
-			pos++;
-			period = true;
-		}
-		boolean hex = false;
-		if (t.node.equals("IntegerLiteral") && pos < end - 1 && s.substring(pos, pos + 2).toLowerCase().equals("0x")) {
-			hex = true;
-			pos += 2;
-		}
-		while (pos < end && (Character.isDigit(s.charAt(pos)) || (hex && ((s.charAt(pos) >= 'a' && s.charAt(pos) <= 'f') || (s.charAt(pos) >= 'A' && s.charAt(pos) <= 'F'))))) {
-			pos++;
-			digits = true;
-		}
-		if (!period && digits && t.node.equals("FloatingPointLiteral") && pos < end && s.charAt(pos) == '.') {
-			pos++;
-			while (pos < end && Character.isDigit(s.charAt(pos))) {
-				pos++;
-			}
-		}
-		if (digits && t.node.equals("IntegerLiteral") && pos < end && Character.toLowerCase(s.charAt(pos)) == 'l') {
-			pos++;
+	protected boolean disjoint(String a, String b) {
+		// Literals begin with a digit, a period, a sign or a quote, so they never conflict
+		// with identifiers and keywords.
+		if (literal(a) && (b.equals("IDENTIFIER") || (b.startsWith("'") && keyword(b.substring(1, b.length() - 1))))) {
+			return true;
 		}
-		if (digits && t.node.equals("FloatingPointLiteral") && pos < end && Character.toLowerCase(s.charAt(pos)) == 'e') {
-			if (pos >= end) {
-				return null;
-			}
-			pos++;
-			if (s.charAt(pos) == '+' || s.charAt(pos) == '-') {
-				pos++;
-			}
-			if (pos >= end) {
-				return null;
-			}
-			digits = false;
-			while (pos < end && Character.isDigit(s.charAt(pos))) {
-				pos++;
-				digits = true;
-			}
-		}
-		if (digits && t.node.equals("FloatingPointLiteral") && pos < end && (Character.toLowerCase(s.charAt(pos)) == 'f' || Character.toLowerCase(s.charAt(pos)) == 'd')) {
-			pos++;
-		}
-		if (digits) {
-			if (pos < end && Character.isLetter(s.charAt(pos))) {
-				return null;
-			}
-			return new Tree(s, begin, pos, t);
-		} else {
-			return null;
+		if (literal(b) && (a.equals("IDENTIFIER") || (a.startsWith("'") && keyword(a.substring(1, a.length() - 1))))) {
+			return true;
 		}
+		return super.disjoint(a, b);
 	}
-	
-	Set<String> keywords;
 
-	@Override
-	protected boolean keyword(String s) {
-		if (keywords == null) {
-			keywords = new HashSet<String>();
-			for (String def : definitions.keySet()) {
-				browseTreeForKeywords(definitions.get(def));
-			}
-		}
-		return keywords.contains(s);
-	}
-
-	private void browseTreeForKeywords(Tree t) {
-		if (t == null) {
-			return;
-		}
-		if (t.type == NodeType.token) {
-			if (Character.isLetter(t.node.charAt(1))) {
-				keywords.add(t.node.substring(1, t.node.length() - 1));
-			}
-		}
-		for (Tree b : t.branches) {
-			browseTreeForKeywords(b);
-		}
+	private boolean literal(String terminal) {
+		return terminal.equals("StringLiteral") || terminal.equals("IntegerLiteral") ||
+				terminal.equals("CharacterLiteral") || terminal.equals("FloatingPointLiteral");
 	}
 
 	@Override
-	protected int skipWhiteSpace(String s, int begin, int end) throws ParseException {
+	protected int skipWhiteSpace(CharSequence s, int begin, int end) throws ParseException {
 		int b = begin;
 		while (true) {
 			b = super.skipWhiteSpace(s, b, end);
-			if (b < end - 2 && s.startsWith("/*", b)) {
-				int c = s.indexOf("*/", b + 1);
+			if (b < end - 2 && s.charAt(b) == '/' && s.charAt(b + 1) == '*') {
+				int c = commentEnd(s, b + 1);
 				if (c < 0) {
 					throw new RuntimeException("Comment not closed in " + pos(b));
 				}
 				b = c + 2;
-			} else if (b < end - 2 && s.startsWith("//", b)) {
-				int c = s.indexOf("\n", b + 2);
+			} else if (b < end - 2 && s.charAt(b) == '/' && s.charAt(b + 1) == '/') {
+				int c = lineEnd(s, b + 2);
 				if (c < 0) {
 					c = s.length();
 				}
@@ -261,4 +127,27 @@ public class JavaParser extends Parser {
 		}
 	}
 
+	/**
+	 * @return the position of the next star-slash or -1.
+	 */
+	private int commentEnd(CharSequence s, int from) {
+		for (int i = from, n = s.length() - 1; i < n; i++) {
+			i = CharScanner.indexOf(s, '*', i, n);
+			if (i < 0) {
+				break;
+			}
+			if (s.charAt(i + 1) == '/') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the position of the next new line or -1.
+	 */
+	private int lineEnd(CharSequence s, int from) {
+		return CharScanner.indexOf(s, '\n', from, s.length());
+	}
+
 }
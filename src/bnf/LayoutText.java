@@ -0,0 +1,281 @@
+/*
+ * A Python source text with the layout tokens.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+import java.util.BitSet;
+
+import util.LineIndex;
+
+/**
+ *
+ * A source text with the layout tokens of Python (NEWLINE, INDENT, DEDENT and ENDMARKER)
+ * inserted as virtual characters, so they are matched by the parser like any other terminal.<br/>
+ * The tokens are found by a single pass over the text which keeps the stack of the indentation
+ * levels and the depth of the brackets:<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- a NEWLINE ends every logical line which is not blank or a comment;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- the lines inside brackets and the lines which end with a backslash are joined;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- the indentation of a logical line is compared with the current level, which
+ * produces an INDENT or as many DEDENTs as there are levels to close (a tab moves to the next
+ * multiple of 8); a dedent to a column which is not an outer level is an error;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- the strings are skipped, so their contents never produce tokens.<br/>
+ * The tokens are inserted right before the line break which ends a logical line, so the lines
+ * of the text and the columns of the real characters don't change. The end of the text gets the
+ * remaining DEDENTs and an ENDMARKER.<br/>
+ * The virtual characters are not part of the strings obtained with subSequence().
+ *
+ * @author Zuben El Acribi
+ *
+ */
+class LayoutText implements CharSequence {
+
+	/**
+	 * The virtual characters (from the private use area of Unicode).
+	 */
+	static final char NEWLINE = '\uE000';
+	static final char INDENT = '\uE001';
+	static final char DEDENT = '\uE002';
+	static final char ENDMARKER = '\uE003';
+
+	private static final int TAB_SIZE = 8;
+
+	private char[] chars;
+
+	/**
+	 * The positions of the virtual characters.
+	 */
+	private BitSet layout;
+
+	/**
+	 * The tokens found so far and the positions in the original text before which they are inserted.
+	 */
+	private int[] tokenPos = new int[64];
+	private char[] tokens = new char[64];
+	private int tokenCount;
+
+	/**
+	 * Tokenizes a text.
+	 * @param s the source text.
+	 * @throws ParseException if a line is dedented to a column which is not an outer indentation level.
+	 */
+	LayoutText(CharSequence s) throws ParseException {
+		int n = s.length();
+		int[] indents = new int[16];
+		int levels = 1;
+		int depth = 0;
+		boolean lineStart = true;
+		boolean logicalLine = false; // Whether the current logical line has a token.
+		int lineEnd = -1; // Where the last logical line ends.
+		int i = 0;
+		while (i < n) {
+			char ch = s.charAt(i);
+			if (lineStart) {
+				lineStart = false;
+				int column = 0;
+				for (; i < n; i++) {
+					ch = s.charAt(i);
+					if (ch == ' ') {
+						column++;
+					} else if (ch == '\t') {
+						column = (column / TAB_SIZE + 1) * TAB_SIZE;
+					} else if (ch == '\f') {
+						column = 0;
+					} else {
+						break;
+					}
+				}
+				if (i < n && ch != '\n' && ch != '\r' && ch != '#' && lineEnd >= 0) {
+					if (column > indents[levels - 1]) {
+						if (levels == indents.length) {
+							int[] copy = new int[levels << 1];
+							System.arraycopy(indents, 0, copy, 0, levels);
+							indents = copy;
+						}
+						indents[levels++] = column;
+						add(lineEnd, INDENT);
+					} else {
+						while (levels > 1 && column < indents[levels - 1]) {
+							levels--;
+							add(lineEnd, DEDENT);
+						}
+						if (column != indents[levels - 1]) {
+							LineIndex lines = new LineIndex(s);
+							throw new ParseException("Unindent does not match any outer indentation level at line "
+									+ lines.line(i) + ", column " + lines.column(i));
+						}
+					}
+				}
+				continue;
+			}
+			if (ch == '\n') {
+				if (depth == 0) {
+					if (logicalLine) {
+						lineEnd = i > 0 && s.charAt(i - 1) == '\r' ? i - 1 : i;
+						add(lineEnd, NEWLINE);
+						logicalLine = false;
+					}
+					lineStart = true;
+				}
+				i++;
+			} else if (ch == ' ' || ch == '\t' || ch == '\f' || ch == '\r') {
+				i++;
+			} else if (ch == '#') {
+				while (i < n && s.charAt(i) != '\n') {
+					i++;
+				}
+			} else if (ch == '\\' && i + 1 < n && (s.charAt(i + 1) == '\n' || s.charAt(i + 1) == '\r')) {
+				i += s.charAt(i + 1) == '\r' && i + 2 < n && s.charAt(i + 2) == '\n' ? 3 : 2; // Joined lines.
+			} else if (ch == '\'' || ch == '"') {
+				logicalLine = true;
+				int e = stringEnd(s, i, n);
+				if (e < 0) {
+					// Not closed: the rest of the line is the string.
+					e = i + 1;
+					while (e < n && s.charAt(e) != '\n') {
+						e++;
+					}
+				}
+				i = e;
+			} else {
+				logicalLine = true;
+				if (ch == '(' || ch == '[' || ch == '{') {
+					depth++;
+				} else if ((ch == ')' || ch == ']' || ch == '}') && depth > 0) {
+					depth--;
+				}
+				i++;
+			}
+		}
+		if (logicalLine) {
+			lineEnd = n;
+			add(lineEnd, NEWLINE);
+		}
+		while (levels > 1) {
+			levels--;
+			add(lineEnd, DEDENT);
+		}
+		add(n, ENDMARKER);
+
+		// Merge the text and the tokens.
+		chars = new char[n + tokenCount];
+		layout = new BitSet(chars.length);
+		int c = 0;
+		int r = 0;
+		for (int k = 0; k < tokenCount; k++) {
+			while (r < tokenPos[k]) {
+				chars[c++] = s.charAt(r++);
+			}
+			layout.set(c);
+			chars[c++] = tokens[k];
+		}
+		while (r < n) {
+			chars[c++] = s.charAt(r++);
+		}
+		tokenPos = null;
+		tokens = null;
+	}
+
+	private void add(int pos, char token) {
+		if (tokenCount == tokens.length) {
+			int[] p = new int[tokenCount << 1];
+			System.arraycopy(tokenPos, 0, p, 0, tokenCount);
+			tokenPos = p;
+			char[] t = new char[tokenCount << 1];
+			System.arraycopy(tokens, 0, t, 0, tokenCount);
+			tokens = t;
+		}
+		tokenPos[tokenCount] = pos;
+		tokens[tokenCount++] = token;
+	}
+
+	/**
+	 * Finds the end of a string in single or double quotes or in triple quotes.
+	 * @param s the text.
+	 * @param begin the position of the opening quote.
+	 * @param end the end of the text.
+	 * @return the position after the closing quote or -1 if the string is not closed.
+	 */
+	static int stringEnd(CharSequence s, int begin, int end) {
+		char quote = s.charAt(begin);
+		if (begin + 2 < end && s.charAt(begin + 1) == quote && s.charAt(begin + 2) == quote) {
+			for (int i = begin + 3; i < end; i++) {
+				char ch = s.charAt(i);
+				if (ch == '\\') {
+					i++;
+				} else if (ch == quote && i + 2 < end && s.charAt(i + 1) == quote && s.charAt(i + 2) == quote) {
+					return i + 3;
+				}
+			}
+			return -1;
+		}
+		for (int i = begin + 1; i < end; i++) {
+			char ch = s.charAt(i);
+			if (ch == '\\') {
+				i++;
+			} else if (ch == quote) {
+				return i + 1;
+			} else if (ch == '\n') {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param pos a position.
+	 * @return the layout token at the position or 0 if the character is real.
+	 */
+	char token(int pos) {
+		return pos < chars.length && layout.get(pos) ? chars[pos] : 0;
+	}
+
+	@Override
+	public int length() {
+		return chars.length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		return chars[index];
+	}
+
+	/**
+	 * @return the real characters between the given positions.
+	 */
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		int v = layout.nextSetBit(start);
+		if (v < 0 || v >= end) {
+			return new String(chars, start, end - start);
+		}
+		StringBuffer res = new StringBuffer(end - start);
+		for (int i = start; i < end; i++) {
+			if (!layout.get(i)) {
+				res.append(chars[i]);
+			}
+		}
+		return res.toString();
+	}
+
+	@Override
+	public String toString() {
+		return subSequence(0, chars.length).toString();
+	}
+
+}
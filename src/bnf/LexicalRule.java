@@ -0,0 +1,44 @@
+/*
+ * A definition which is recognized by code instead of a BNF expression.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+/**
+ *
+ * A lexical rule recognizes a definition (usually a literal) by scanning
+ * characters. Lexical rules are registered by parsers with Parser.lexicalRule()
+ * and are resolved when the definitions are compiled, so the parser calls them
+ * directly when it meets a reference to the definition.
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public interface LexicalRule {
+
+	/**
+	 * Scans the definition at the given position. Whitespace is already skipped.
+	 * @param s the whole string.
+	 * @param begin the position where the definition should begin (begin < end).
+	 * @param end the end of the parsed substring (exclusive).
+	 * @return the end of the recognized substring (exclusive) or -1 if the
+	 *   definition does not match at the given position.
+	 */
+	int match(CharSequence s, int begin, int end);
+
+}
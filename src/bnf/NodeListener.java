@@ -0,0 +1,40 @@
+/*
+ * Receives the nodes of a streaming parse.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+/**
+ *
+ * Receives the top-level nodes of a stream parsed by Parser.parse(String, Reader, NodeListener)
+ * as soon as they are complete.
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public interface NodeListener {
+
+	/**
+	 * Called for every top-level node in the order of the stream. The nodes have their strings
+	 * and their positions are the positions in the stream, but the text of the stream before the
+	 * node is discarded, so the node should not be used to read the text around it (its 's').
+	 * @param t the parse tree of the node.
+	 */
+	void completed(Tree t);
+
+}
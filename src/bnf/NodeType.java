@@ -75,5 +75,39 @@ public enum NodeType {
 	 * It defines a repetitive expression, i.e. an expression which may match
 	 * 0 or more times.
 	 */
-	repetition
+	repetition,
+
+	/**
+	 * A separated list X { sep X } where 'sep' is a token (see GrammarOptimizer.lists()).
+	 * The definition has two branches: the element and the separator. The parse tree has
+	 * the elements and the separators as branches alternately.
+	 */
+	list,
+
+	/**
+	 * An operand followed by the keyword PRECEDENCE and a table of operators, e.g.<br/>
+	 * Operand PRECEDENCE ( LEFT '+' '-' | LEFT '*' '/' ).<br/>
+	 * It matches operands separated by binary operators. The first branch is the
+	 * operand and the next ones are the levels of the table (of type 'left' or 'right')
+	 * from the lowest precedence to the highest.
+	 */
+	precedence,
+
+	/**
+	 * A level of an operator table whose operators are left-associative.
+	 * Its branches are the operator tokens.
+	 */
+	left,
+
+	/**
+	 * A level of an operator table whose operators are right-associative.
+	 * Its branches are the operator tokens.
+	 */
+	right,
+
+	/**
+	 * Text which the parser has skipped in the recovering mode (see Parser.setRecovering()).
+	 * The node has no branches; its definition is the one which has failed to match the text.
+	 */
+	error
 }
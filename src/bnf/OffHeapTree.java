@@ -0,0 +1,272 @@
+/*
+ * A parse tree stored outside the Java heap.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ *
+ * A read-only parse tree whose nodes are fixed-size records in a direct byte buffer,
+ * so a tree of a very large input neither fills the heap nor is traced by the garbage collector.<br/>
+ * A node is referred to by its number. The records are in breadth-first order, so the branches
+ * of a node are adjacent. Every record consists of seven ints:<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- the definition (an index in a table of definition nodes, -1 if none);<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- the node type (-1 for a null branch of a choice);<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- the beginning and the end of the substring;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- the parent (-1 for the root);<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- the first branch and the number of branches.<br/>
+ * The text of a node is not stored: text() takes it from the parsed string when it is asked for.
+ * A subtree may be converted to Tree objects with toTree().<br/>
+ * The buffer is released when the tree is closed; a closed tree may not be read.<br/>
+ * The tree is copied from a parse tree, which the parser must build first because it backtracks
+ * (a node may be discarded until the parse ends), so the peak of the heap is the whole parse tree,
+ * only without the strings of its nodes. The copy detaches the nodes from the parse tree as it goes,
+ * so they are collected and the heap holds only the definitions and the string afterwards.
+ * E.g. a Java file of 5.5 MB needs a maximum heap of about 1.6 GB and keeps about 1.5 GB as a Tree,
+ * but needs about 1.3 GB and keeps less than 1 MB as an off-heap tree.
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public class OffHeapTree implements Closeable {
+
+	private static final int DEF = 0, TYPE = 4, BEGIN = 8, END = 12, PARENT = 16, FIRST = 20, COUNT = 24;
+	private static final int RECORD = 28;
+
+	private static final NodeType[] TYPES = NodeType.values();
+
+	/**
+	 * Stands for a null branch in the queue of the nodes to be copied.
+	 */
+	private static final Tree NULL_BRANCH = new Tree();
+
+	private ByteBuffer buf;
+
+	private int size;
+
+	/**
+	 * The definition nodes, by number.
+	 */
+	private Tree[] defs;
+
+	private CharSequence s;
+
+	/**
+	 * Moves a parse tree into a direct buffer. The parse tree is taken apart: its nodes lose their
+	 * branches and parents as they are copied, so they may be collected before the copy ends.
+	 * @param root the root of a parse tree; its nodes need not have 'node' set.
+	 * @param s the parsed string.
+	 */
+	OffHeapTree(Tree root, CharSequence s) {
+		this.s = s;
+		long count = count(root);
+		if (count > Integer.MAX_VALUE / RECORD) {
+			throw new RuntimeException("The tree is too large to be stored off the heap: " + count + " nodes");
+		}
+		size = (int) count;
+		buf = ByteBuffer.allocateDirect(size * RECORD).order(ByteOrder.nativeOrder());
+		// The definitions are nodes of the grammar, so there are not more of them than in the grammar.
+		IdentityHashMap<Tree, Integer> defIds = new IdentityHashMap<Tree, Integer>();
+		ArrayList<Tree> defList = new ArrayList<Tree>();
+		// The nodes whose branches have been numbered but which haven't been copied, in breadth-first order.
+		ArrayDeque<Tree> queue = new ArrayDeque<Tree>();
+		queue.add(root);
+		int first = 1;
+		for (int i = 0; i < size; i++) {
+			Tree t = queue.poll();
+			int r = i * RECORD;
+			if (t == NULL_BRANCH) {
+				buf.putInt(r + DEF, -1);
+				buf.putInt(r + TYPE, -1);
+				buf.putInt(r + COUNT, 0);
+				continue;
+			}
+			Integer def = -1;
+			if (t.def != null) {
+				def = defIds.get(t.def);
+				if (def == null) {
+					def = defList.size();
+					defIds.put(t.def, def);
+					defList.add(t.def);
+				}
+			}
+			buf.putInt(r + DEF, def);
+			buf.putInt(r + TYPE, t.type.ordinal());
+			buf.putInt(r + BEGIN, t.begin);
+			buf.putInt(r + END, t.end);
+			buf.putInt(r + FIRST, first);
+			buf.putInt(r + COUNT, t.branches.size());
+			for (int j = 0; j < t.branches.size(); j++) {
+				Tree b = t.branches.get(j);
+				queue.add(b == null ? NULL_BRANCH : b);
+				buf.putInt((first + j) * RECORD + PARENT, i);
+			}
+			first += t.branches.size();
+			t.branches = null;
+			t.parent = null;
+		}
+		buf.putInt(PARENT, -1);
+		defs = defList.toArray(new Tree[defList.size()]);
+	}
+
+	/**
+	 * @return the number of the nodes of a parse tree (including the null branches).
+	 */
+	private static long count(Tree root) {
+		long res = 1;
+		ArrayDeque<Tree> stack = new ArrayDeque<Tree>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			Tree t = stack.pop();
+			res += t.branches.size();
+			for (Tree b : t.branches) {
+				if (b != null) {
+					stack.push(b);
+				}
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @return the number of the root node.
+	 */
+	public int root() {
+		return 0;
+	}
+
+	/**
+	 * @return the number of the nodes (including the null branches).
+	 */
+	public int size() {
+		check();
+		return size;
+	}
+
+	/**
+	 * @return the type of a node or null if the node is a null branch of a choice.
+	 */
+	public NodeType type(int n) {
+		int t = buffer().getInt(n * RECORD + TYPE);
+		return t < 0 ? null : TYPES[t];
+	}
+
+	/**
+	 * @return the definition of a node or null.
+	 */
+	public Tree def(int n) {
+		int d = buffer().getInt(n * RECORD + DEF);
+		return d < 0 ? null : defs[d];
+	}
+
+	public int begin(int n) {
+		return buffer().getInt(n * RECORD + BEGIN);
+	}
+
+	public int end(int n) {
+		return buffer().getInt(n * RECORD + END);
+	}
+
+	/**
+	 * @return the parent of a node or -1 for the root.
+	 */
+	public int parent(int n) {
+		return buffer().getInt(n * RECORD + PARENT);
+	}
+
+	public int branchCount(int n) {
+		return buffer().getInt(n * RECORD + COUNT);
+	}
+
+	/**
+	 * @param n a node.
+	 * @param i the number of the branch.
+	 * @return the branch or -1 if it is a null branch of a choice.
+	 */
+	public int branch(int n, int i) {
+		ByteBuffer b = buffer();
+		if (i < 0 || i >= b.getInt(n * RECORD + COUNT)) {
+			throw new IndexOutOfBoundsException("Branch: " + i + ", branches: " + b.getInt(n * RECORD + COUNT));
+		}
+		int res = b.getInt(n * RECORD + FIRST) + i;
+		return b.getInt(res * RECORD + TYPE) < 0 ? -1 : res;
+	}
+
+	/**
+	 * @return the substring which a node has matched.
+	 */
+	public String text(int n) {
+		return s.subSequence(begin(n), end(n)).toString();
+	}
+
+	/**
+	 * Converts a subtree to Tree objects, e.g. for code which works with Tree.
+	 * @param n a node.
+	 * @return the subtree whose root is the given node (its parent is null).
+	 */
+	public Tree toTree(int n) {
+		if (type(n) == null) {
+			return null;
+		}
+		Tree res;
+		if (branchCount(n) == 0) {
+			res = new Tree();
+			res.s = s;
+			res.begin = begin(n);
+			res.end = end(n);
+			res.node = text(n);
+			res.def = def(n);
+			res.type = type(n);
+		} else {
+			res = new Tree(type(n), def(n));
+			for (int i = 0; i < branchCount(n); i++) {
+				int b = branch(n, i);
+				res.addBranch(b < 0 ? null : toTree(b));
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Releases the buffer. The memory is returned when the buffer is collected,
+	 * which doesn't depend on the size of the tree.
+	 */
+	@Override
+	public void close() {
+		buf = null;
+	}
+
+	private ByteBuffer buffer() {
+		check();
+		return buf;
+	}
+
+	private void check() {
+		if (buf == null) {
+			throw new IllegalStateException("The tree is closed");
+		}
+	}
+
+}
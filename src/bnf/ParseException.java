@@ -37,5 +37,13 @@ public class ParseException extends Exception {
 		super(errorMessage);
 	}
 
+	/**
+	 * Constructs an exception without message and stack trace, which is cheap to throw.
+	 * The parser throws such an exception when it backtracks (see Parser.MISMATCH).
+	 */
+	ParseException() {
+		super(null, null, false, false);
+	}
+
 }
 
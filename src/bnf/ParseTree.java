@@ -19,38 +19,110 @@
 
 package bnf;
 
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+
+import util.LineIndex;
+
 /**
  * 
- * Extends Tree by adding the path to the file which has been parsed.
+ * Extends Tree by adding the path to the file which has been parsed.<br/>
+ * The tree is either a Tree or an OffHeapTree (see Parser.parseOffHeap()).
+ * The latter should be released with close().
  * 
  * @author Zuben El Acribi
  *
  */
-public class ParseTree {
+public class ParseTree implements Closeable {
 
 	/**
 	 * A parse tree obtained by Parser.
 	 */
 	public Tree tree;
 	
+	/**
+	 * An off-heap parse tree obtained by Parser.parseOffHeap() or null.
+	 */
+	public OffHeapTree offHeap;
+	
 	/**
 	 * The path to the file which has been parsed.
 	 */
 	public String filename;
 	
+	/**
+	 * The line index of the parsed file.
+	 */
+	public LineIndex lines;
+	
+	/**
+	 * The syntax errors which the parser has skipped in the recovering mode (see Parser.setRecovering()).
+	 */
+	public List<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+	
+	private TreeIndex index;
+	
 	/**
 	 * Constructs a parse tree.
 	 * @param filename the path to the file which has been parsed.
 	 * @param tree the parse tree obtained by a Parser.
 	 */
 	public ParseTree(String filename, Tree tree) {
+		this(filename, tree, new LineIndex(tree.s));
+	}
+	
+	/**
+	 * Constructs a parse tree.
+	 * @param filename the path to the file which has been parsed.
+	 * @param tree the parse tree obtained by a Parser.
+	 * @param lines the line index of the parsed string.
+	 */
+	public ParseTree(String filename, Tree tree, LineIndex lines) {
 		this.filename = filename;
 		this.tree = tree;
+		this.lines = lines;
+	}
+	
+	/**
+	 * Constructs a parse tree stored off the heap.
+	 * @param filename the path to the file which has been parsed.
+	 * @param offHeap the parse tree obtained by Parser.parseOffHeap().
+	 * @param lines the line index of the parsed string.
+	 */
+	public ParseTree(String filename, OffHeapTree offHeap, LineIndex lines) {
+		this.filename = filename;
+		this.offHeap = offHeap;
+		this.lines = lines;
+	}
+	
+	/**
+	 * @return the index of the nodes by position, built on the first call.
+	 * @throws IllegalStateException if the tree is off the heap.
+	 */
+	public TreeIndex index() {
+		if (tree == null) {
+			throw new IllegalStateException("An off-heap tree is not indexed");
+		}
+		if (index == null) {
+			index = new TreeIndex(this);
+		}
+		return index;
+	}
+	
+	/**
+	 * Releases the off-heap tree if any.
+	 */
+	@Override
+	public void close() {
+		if (offHeap != null) {
+			offHeap.close();
+		}
 	}
 	
 	@Override
 	public String toString() {
-		return filename + '\n' + tree;
+		return filename + '\n' + (offHeap != null ? offHeap.toTree(offHeap.root()) : tree);
 	}
 	
 }
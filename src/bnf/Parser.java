@@ -21,11 +21,20 @@ package bnf;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Set;
 
-import util.FileUtil;
+import util.CharScanner;
+import util.LineIndex;
+import util.MappedText;
+import util.StreamText;
 
 public abstract class Parser {
 
@@ -57,19 +66,269 @@ public abstract class Parser {
 	}
 
 	HashMap<String, Tree> definitions = new HashMap<String, Tree>();
-	int[] linePositions;
-	int[] columnPositions;
+
+	/**
+	 * The line index of the string being parsed.
+	 */
+	LineIndex lines;
+
+	/**
+	 * The text of a streaming parse, otherwise null (see parse(String, Reader, NodeListener)).
+	 */
+	private StreamText stream;
+
+	/**
+	 * The initial size of the window of a streaming parse.
+	 */
+	private static final int STREAM_WINDOW = 1 << 16;
 
 	HashSet<StackElem> stack;
 
+	/**
+	 * The nodes of the parse tree being built.
+	 */
+	private TreeArena arena;
+
+	/**
+	 * The order in which the alternatives of a choice are tried if it differs
+	 * from the order in the definition.
+	 */
+	private IdentityHashMap<Tree, int[]> choiceOrder = new IdentityHashMap<Tree, int[]>();
+
+	/**
+	 * If not null then the matched alternatives of every choice are recorded.
+	 */
+	ChoiceProfile profile;
+
+	/**
+	 * All tokens of the definitions.
+	 */
+	TokenTrie terminals;
+
+	/**
+	 * The keywords of the definitions (see keyword()), collected when they are first asked for.
+	 */
+	private Set<String> keywords;
+
+	/**
+	 * The registered lexical rules by definition name.
+	 */
+	private HashMap<String, LexicalRule> lexicalRules = new HashMap<String, LexicalRule>();
+
+	/**
+	 * The lexical rules by rule number (the id of the identifier nodes which refer to them).
+	 */
+	LexicalRule[] lexicalRuleIds;
+
+	/**
+	 * The generalized parser if the Earley backend is selected, otherwise null.
+	 */
+	private EarleyParser earley;
+
+	/**
+	 * Whether the syntax errors are skipped (see setRecovering()).
+	 */
+	private boolean recovering;
+
+	/**
+	 * 'true' while a string with syntax errors is parsed for the second time in the recovering mode.
+	 */
+	private boolean resync;
+
+	/**
+	 * The definitions whose repetitions skip the syntax errors and the tokens after which the parse resumes.
+	 */
+	private HashSet<String> syncRules = new HashSet<String>();
+	private ArrayList<String> syncTokens = new ArrayList<String>();
+	private int[] syncTokenIds;
+
+	/**
+	 * The repetitions of the sync rules with the FIRST sets of their elements.
+	 */
+	private IdentityHashMap<Tree, Set<String>> syncRepetitions;
+
+	/**
+	 * The diagnostics of the error nodes. The nodes of the failed alternatives are discarded
+	 * after the parse, so their diagnostics are too.
+	 */
+	private IdentityHashMap<Tree, Diagnostic> errors;
+
+	/**
+	 * The syntax errors of the last parse in the recovering mode.
+	 */
+	private ArrayList<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+
+	/**
+	 * The exception which is thrown when an expression doesn't match. It is caught when the
+	 * parser backtracks, so it has neither a stack trace nor a message; the message is made
+	 * once from the furthest failure (see failure()).
+	 */
+	private static final ParseException MISMATCH = new ParseException();
+
+	/**
+	 * The furthest position where a terminal has failed to match.
+	 */
+	private int failPos;
+
+	/**
+	 * The terminals which have been expected at failPos: the token numbers and, after them,
+	 * IDENTIFIER, TOKEN, NEW_LINE and the lexical rules (see expected()).
+	 */
+	private BitSet expected = new BitSet();
+
+	private static final int IDENTIFIER = 0, TOKEN = 1, NEW_LINE = 2, LEXICAL_RULES = 3;
+
 	public Parser() throws ParserInitializationException {
 		initialize();
 		checkForMissingDefinitions();
+		compile();
+		optimize();
 	}
 
 	public abstract void initialize() throws ParserInitializationException;
 	
-	protected abstract boolean keyword(String s);
+	/**
+	 * @param s a string which is a token in the definitions.
+	 * @return 'true' if the token is a keyword, i.e. it may not be an identifier.
+	 *   Only tokens which appear in the definitions are considered to be keywords;
+	 *   by default these are the tokens which begin with a letter.
+	 */
+	protected boolean keyword(String s) {
+		if (keywords == null) {
+			keywords = new HashSet<String>();
+			for (String def : definitions.keySet()) {
+				browseTreeForKeywords(definitions.get(def));
+			}
+		}
+		return keywords.contains(s);
+	}
+
+	private void browseTreeForKeywords(Tree t) {
+		if (t == null) {
+			return;
+		}
+		if (t.type == NodeType.token) {
+			if (Character.isLetter(t.node.charAt(1))) {
+				keywords.add(t.node.substring(1, t.node.length() - 1));
+			}
+		}
+		for (Tree b : t.branches) {
+			browseTreeForKeywords(b);
+		}
+	}
+
+	/**
+	 * Registers a definition which is recognized by a lexical rule instead of a BNF
+	 * expression, e.g. a literal. Should be called from initialize().
+	 * @param def the definition name.
+	 * @param rule the lexical rule which recognizes the definition.
+	 */
+	protected void lexicalRule(String def, LexicalRule rule) {
+		definitions.put(def, null);
+		lexicalRules.put(def, rule);
+	}
+
+	/**
+	 * Declares a definition whose repetitions skip the syntax errors in the recovering mode,
+	 * e.g. a statement. Should be called from initialize().
+	 * @param def the definition name.
+	 */
+	protected void syncRule(String def) {
+		syncRules.add(def);
+	}
+
+	/**
+	 * Declares a token after which the parse resumes in the recovering mode, e.g. ';'.
+	 * Should be called from initialize().
+	 * @param token a token of the definitions (without quotes).
+	 */
+	protected void syncToken(String token) {
+		syncTokens.add(token);
+	}
+
+	/**
+	 * Gives numbers to the tokens of the definitions and puts them into the token trie.
+	 * Resolves the references to lexical rules.
+	 */
+	private void compile() {
+		terminals = new TokenTrie();
+		ArrayList<LexicalRule> rules = new ArrayList<LexicalRule>(lexicalRules.values());
+		for (String def : definitions.keySet()) {
+			if (definitions.get(def) != null) {
+				compile(definitions.get(def), rules);
+			}
+		}
+		terminals.compile(this);
+		lexicalRuleIds = rules.toArray(new LexicalRule[rules.size()]);
+		syncTokenIds = new int[syncTokens.size()];
+		for (int i = 0; i < syncTokenIds.length; i++) {
+			syncTokenIds[i] = terminals.id(syncTokens.get(i));
+			if (syncTokenIds[i] < 0) {
+				throw new RuntimeException("The sync token is not a token of the definitions: " + syncTokens.get(i));
+			}
+		}
+	}
+
+	private void compile(Tree t, ArrayList<LexicalRule> rules) {
+		if (t.type == NodeType.token) {
+			t.id = terminals.add(escape(t.node.substring(1, t.node.length() - 1)));
+		} else if (t.type == NodeType.identifier && lexicalRules.containsKey(t.node)) {
+			t.id = rules.indexOf(lexicalRules.get(t.node));
+		}
+		for (Tree b : t.branches) {
+			if (b != null) {
+				compile(b, rules);
+			}
+		}
+	}
+
+	/**
+	 * Converts the separated lists into list nodes, inlines the non-recursive definitions and
+	 * collapses the trivial optionals. The nested sequences and choices are merged only if
+	 * flattenGrammar() permits it.
+	 */
+	private void optimize() {
+		GrammarOptimizer optimizer = new GrammarOptimizer(definitions);
+		optimizer.lists();
+		optimizer.inline();
+		optimizer.collapseOptionals();
+		if (flattenGrammar()) {
+			optimizer.flatten();
+		}
+	}
+
+	/**
+	 * Tells whether only the longest token matches at a position like in a tokenizer, e.g. '<='
+	 * is never '<' followed by '='. The default is 'false' because a Java parser needs
+	 * '>>' to close two type argument lists.
+	 * @return 'true' if only the longest token matches.
+	 */
+	protected boolean longestMatch() {
+		return false;
+	}
+
+	/**
+	 * Prepares a string for parsing, e.g. a parser of a language with significant
+	 * indentation may add the layout tokens. The nodes of the parse tree refer to the
+	 * returned sequence.
+	 * @param s the string to be parsed.
+	 * @return the sequence which is parsed (the string itself by default).
+	 * @throws ParseException if the string cannot be prepared, e.g. an inconsistent indentation.
+	 */
+	protected CharSequence prepare(CharSequence s) throws ParseException {
+		return s;
+	}
+
+	/**
+	 * Tells whether the nested sequences and choices of the definitions should be merged.
+	 * This makes the parse trees smaller but their shape differs from the definitions,
+	 * so the default is 'false'. Parsers whose parse trees are not navigated by branch numbers
+	 * may override this.
+	 * @return 'true' to flatten the definitions.
+	 */
+	protected boolean flattenGrammar() {
+		return false;
+	}
 
 	private void checkForMissingDefinitions() {
 		Set<String> missing = new HashSet<String>();
@@ -102,7 +361,8 @@ public abstract class Parser {
 				missing.add(t.node);
 			}
 		} else if (t.type == NodeType.choice || t.type == NodeType.sequence ||
-				t.type == NodeType.optional || t.type == NodeType.repetition) {
+				t.type == NodeType.optional || t.type == NodeType.repetition ||
+				t.type == NodeType.precedence || t.type == NodeType.left || t.type == NodeType.right) {
 			for (Tree b : t.branches) {
 				if (b != null) {
 					missing.addAll(checkTreeForMissingDefinitions(b));
@@ -112,81 +372,480 @@ public abstract class Parser {
 		return missing;
 	}
 
+	/**
+	 * Selects the algorithm which recognizes the strings. The backtracking parser is the default;
+	 * grammars which are ambiguous or need long lookahead should use the Earley parser.
+	 * @param backend the parsing algorithm.
+	 */
+	public void setBackend(Backend backend) {
+		earley = backend == Backend.earley ? new EarleyParser(this) : null;
+	}
+
+	/**
+	 * Selects the recovering mode. If a string has syntax errors then it is parsed again and
+	 * every element of a repetition of a sync rule (see syncRule()) or of a choice which has a sync
+	 * rule among its alternatives which fails to match becomes
+	 * a node of type 'error' which spans the text up to:<br/>
+	 * &nbsp;&nbsp;&nbsp;&nbsp;- a sync token (see syncToken()) outside of brackets;<br/>
+	 * &nbsp;&nbsp;&nbsp;&nbsp;- a closing curly bracket which closes a skipped opening one;<br/>
+	 * &nbsp;&nbsp;&nbsp;&nbsp;- a closing bracket which closes an opening one before the error;<br/>
+	 * &nbsp;&nbsp;&nbsp;&nbsp;- a line which begins with an element, e.g. the next member.<br/>
+	 * An element fails only if its first token may begin it, otherwise the repetition ends as usual.
+	 * The parse returns a tree with the error nodes and getDiagnostics() tells the errors. If the
+	 * tree doesn't reach the end of the string the rest of the string is a diagnostic too.
+	 * A ParseException is thrown only if the errors can't be skipped, e.g. at the beginning of the
+	 * string. The strings without errors are parsed once and their trees are the same as in the
+	 * normal mode. The Earley backend doesn't recover.
+	 * @param recovering 'true' to skip the syntax errors.
+	 */
+	public void setRecovering(boolean recovering) {
+		this.recovering = recovering;
+		if (recovering && syncRepetitions == null) {
+			FirstSets first = new FirstSets(definitions);
+			syncRepetitions = new IdentityHashMap<Tree, Set<String>>();
+			IdentityHashMap<Tree, Tree> visited = new IdentityHashMap<Tree, Tree>();
+			for (Tree t : definitions.values()) {
+				if (t != null) {
+					findSyncRepetitions(t, first, visited);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the sync rule which a tree refers to or whose inlined body it is, or null.
+	 */
+	private String syncRuleOf(Tree t) {
+		String rule = null;
+		if (t.type == NodeType.identifier) {
+			rule = t.node;
+		} else if (t.parent != null && t.parent.parent == null && definitions.get(t.parent.node) == t) {
+			rule = t.parent.node; // An inlined body.
+		}
+		return rule != null && syncRules.contains(rule) ? rule : null;
+	}
+
+	private void findSyncRepetitions(Tree t, FirstSets first, IdentityHashMap<Tree, Tree> visited) {
+		if (visited.put(t, t) != null) {
+			return;
+		}
+		if (t.type == NodeType.repetition) {
+			Tree elem = t.branches.get(0);
+			String rule = syncRuleOf(elem);
+			if (rule == null && elem.type == NodeType.choice) {
+				for (Tree b : elem.branches) {
+					rule = b == null ? null : syncRuleOf(b); // E.g. (NEWLINE | stmt)*.
+					if (rule != null) {
+						break;
+					}
+				}
+			}
+			if (rule != null) {
+				syncRepetitions.put(t, first.rule(rule));
+			}
+		}
+		for (Tree b : t.branches) {
+			findSyncRepetitions(b, first, visited);
+		}
+	}
+
+	/**
+	 * @return 'true' if the parser is in the recovering mode.
+	 */
+	public boolean isRecovering() {
+		return recovering;
+	}
+
+	/**
+	 * @return the syntax errors which the last parse has skipped in the recovering mode.
+	 */
+	public List<Diagnostic> getDiagnostics() {
+		return diagnostics;
+	}
+
+	/**
+	 * Records the matched alternatives of every choice while parsing.
+	 * @param profile the profile where the statistics will be collected or
+	 *   null to stop recording.
+	 */
+	public void setProfile(ChoiceProfile profile) {
+		this.profile = profile;
+	}
+
+	/**
+	 * Reorders the alternatives of the choices so that the most frequently matched ones
+	 * are tried first. Two alternatives may exchange places only if no string
+	 * can be matched by both of them, i.e. their FIRST sets do not conflict
+	 * and neither of them may match the empty string, so the parse result
+	 * doesn't change. The parse trees keep the numbering of the alternatives
+	 * from the definitions.
+	 * @param profile a profile recorded over a training corpus.
+	 */
+	public void applyProfile(ChoiceProfile profile) {
+		FirstSets first = new FirstSets(definitions);
+		choiceOrder.clear();
+		IdentityHashMap<Tree, Tree> visited = new IdentityHashMap<Tree, Tree>();
+		for (String def : definitions.keySet()) {
+			if (definitions.get(def) != null) {
+				applyProfile(profile, first, definitions.get(def), visited);
+			}
+		}
+	}
+
+	private void applyProfile(ChoiceProfile profile, FirstSets first, Tree t, IdentityHashMap<Tree, Tree> visited) {
+		if (visited.put(t, t) != null) {
+			return; // An inlined body is shared by several definitions.
+		}
+		for (Tree b : t.branches) {
+			if (b != null) {
+				applyProfile(profile, first, b, visited);
+			}
+		}
+		if (t.type != NodeType.choice) {
+			return;
+		}
+		long[] counts = profile.getCounts(t);
+		if (counts == null) {
+			return;
+		}
+		int n = t.branches.size();
+		int[] order = new int[n];
+		boolean[][] disjoint = new boolean[n][n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+			for (int j = 0; j < i; j++) {
+				disjoint[i][j] = disjoint[j][i] = disjoint(first.first(t.branches.get(i)), first.first(t.branches.get(j)));
+			}
+		}
+		// Bubble the more frequent alternatives up but never swap two conflicting
+		// alternatives, so every pair of conflicting alternatives keeps its relative order.
+		boolean reordered = false;
+		for (boolean swapped = true; swapped; ) {
+			swapped = false;
+			for (int i = 0; i < n - 1; i++) {
+				if (counts[order[i + 1]] > counts[order[i]] && disjoint[order[i]][order[i + 1]]) {
+					int k = order[i];
+					order[i] = order[i + 1];
+					order[i + 1] = k;
+					swapped = reordered = true;
+				}
+			}
+		}
+		if (reordered) {
+			choiceOrder.put(t, order);
+		}
+	}
+
+	boolean disjoint(Set<String> first1, Set<String> first2) {
+		if (first1.contains(FirstSets.EMPTY) || first2.contains(FirstSets.EMPTY)) {
+			return false;
+		}
+		for (String a : first1) {
+			for (String b : first2) {
+				if (!disjoint(a, b)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tells whether two terminals (as represented by FirstSets) may match at the same position.
+	 * Parsers which process definitions themselves should override this method in order to tell
+	 * which of their terminals are disjoint; by default such terminals conflict with everything.
+	 * @param a a terminal.
+	 * @param b another terminal.
+	 * @return 'true' if there is no string which begins with both terminals.
+	 */
+	protected boolean disjoint(String a, String b) {
+		if (a.equals(b)) {
+			return false;
+		}
+		if (a.startsWith("'") && b.startsWith("'")) {
+			String s = escape(a.substring(1, a.length() - 1));
+			String u = escape(b.substring(1, b.length() - 1));
+			if (s.length() > u.length()) {
+				String w = s;
+				s = u;
+				u = w;
+			}
+			if (!u.startsWith(s)) {
+				return true;
+			}
+			// A token ending with a letter never matches in the middle of a word.
+			return Character.isLetter(s.charAt(s.length() - 1)) && Character.isLetter(u.charAt(s.length()));
+		}
+		if (a.startsWith("'") && b.equals("IDENTIFIER")) {
+			return identifierDisjoint(escape(a.substring(1, a.length() - 1)));
+		}
+		if (b.startsWith("'") && a.equals("IDENTIFIER")) {
+			return identifierDisjoint(escape(b.substring(1, b.length() - 1)));
+		}
+		return false;
+	}
+
+	private boolean identifierDisjoint(String token) {
+		return !Character.isJavaIdentifierStart(token.charAt(0)) || keyword(token);
+	}
+
 	public ParseTree parse(String def, File f) throws ParseException {
+		return parse(def, f.toPath());
+	}
+	
+	/**
+	 * Parses a file. The file is memory-mapped and parsed directly, i.e. it is
+	 * not copied into a string.
+	 * @param def the definition which the file should match.
+	 * @param p the path to the file.
+	 * @return the parse tree.
+	 */
+	public ParseTree parse(String def, Path p) throws ParseException {
 		try {
-			return new ParseTree(f.getCanonicalPath(), parse(def, FileUtil.readFile(f)));
+			Tree t = parse(def, new MappedText(p));
+			ParseTree res = new ParseTree(p.toFile().getCanonicalPath(), t, lines);
+			res.diagnostics = diagnostics;
+			return res;
 		} catch (IOException ex) {
 			throw new RuntimeException(ex);
 		}
 	}
 	
-	public Tree parse(String def, String s) throws ParseException {
+	/**
+	 * Parses a file into an off-heap tree (see OffHeapTree). The file is memory-mapped
+	 * as in parse(String, Path). The tree should be closed with ParseTree.close().
+	 * @param def the definition which the file should match.
+	 * @param p the path to the file.
+	 * @return a parse tree whose 'tree' is null and 'offHeap' is set.
+	 */
+	public ParseTree parseOffHeap(String def, Path p) throws ParseException {
+		try {
+			OffHeapTree t = parseOffHeap(def, new MappedText(p));
+			ParseTree res = new ParseTree(p.toFile().getCanonicalPath(), t, lines);
+			res.diagnostics = diagnostics;
+			return res;
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Parses a string into an off-heap tree. The nodes don't get their strings and the parse tree
+	 * is moved into the off-heap tree, so the heap holds only the definitions and the string afterwards.
+	 * The parse tree is built first, so the peak of the heap is the parse tree without the strings
+	 * of its nodes (see OffHeapTree).
+	 * @param def the definition which the string should match.
+	 * @param s the parsed string.
+	 * @return the parse tree.
+	 */
+	public OffHeapTree parseOffHeap(String def, CharSequence s) throws ParseException {
+		Tree t = parse(def, s, false);
+		return new OffHeapTree(t, lines.text());
+	}
+
+	public Tree parse(String def, CharSequence s) throws ParseException {
+		return parse(def, s, true);
+	}
+
+	/**
+	 * Parses a stream which is a sequence of nodes of a definition, e.g. the statements of an SQL dump,
+	 * without keeping the whole stream in memory. The stream is read into a window (see StreamText)
+	 * and every node is passed to the listener as soon as it is complete. The end of a node is a cut
+	 * point: the parser never backtracks before it, so the text before it is discarded and the window
+	 * holds about one node at a time.<br/>
+	 * A node is complete when the parse hasn't read the text near the end of the window, i.e. it
+	 * would be the same if more text were read: the furthest character which has been read plus the
+	 * longest token is inside the window. Otherwise more text is read and the node is parsed again.<br/>
+	 * The text is not prepared (see prepare()), the syntax errors are not skipped and the Earley
+	 * backend is not used.
+	 * @param def a definition whose nodes follow each other or a definition whose body is a repetition
+	 *   (like Script: {Statement}), whose elements are the nodes.
+	 * @param r the stream; it is not closed.
+	 * @param listener receives the nodes.
+	 * @return the number of the nodes.
+	 * @throws ParseException if a node doesn't match; the previous nodes have been passed to the listener.
+	 */
+	public int parse(String def, Reader r, NodeListener listener) throws ParseException {
 		Tree t = definitions.get(def);
 		if (t == null) {
 			throw new RuntimeException("Unknown definition: " + def);
 		}
-		calcPos(s);
-		stack = new HashSet<StackElem>();
-		Tree res = parse(t, s, 0, s.length());
+		if (t.type == NodeType.repetition) {
+			t = t.branches.get(0);
+		}
+		int lookahead = 1; // A keyword is followed by a character which is not a letter.
+		for (int i = 0; i < terminals.size(); i++) {
+			lookahead = Math.max(lookahead, terminals.token(i).length() + 1);
+		}
+		StreamText s = new StreamText(r, STREAM_WINDOW);
+		stream = s;
+		lines = null;
+		diagnostics = new ArrayList<Diagnostic>();
+		int count = 0;
+		try {
+			int begin = 0;
+			while (true) {
+				s.cut(begin);
+				int pos;
+				Tree u;
+				while (true) {
+					s.resetHighWaterMark();
+					ParseException error = null;
+					RuntimeException failure = null; // E.g. a comment which is not closed in the window.
+					pos = begin;
+					u = null;
+					try {
+						pos = skipWhiteSpace(s, begin, s.length());
+						if (pos < s.length()) {
+							u = recognize(t, s, begin); // A node begins where the previous one ends, as in a repetition.
+						}
+					} catch (ParseException ex) {
+						error = new ParseException(failure());
+					} catch (RuntimeException ex) {
+						failure = ex;
+					}
+					if (s.eof() || s.highWaterMark() + lookahead < s.length()) {
+						if (error != null) {
+							throw error;
+						}
+						if (failure != null) {
+							throw failure;
+						}
+						break;
+					}
+					s.fill();
+				}
+				if (u == null) {
+					return count; // The end of the stream.
+				}
+				if (u.end <= pos) {
+					throw new ParseException(failure()); // Nothing matches before the end of the stream.
+				}
+				u.setNodes(terminals);
+				listener.completed(u);
+				count++;
+				begin = u.end;
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		} finally {
+			stream = null;
+		}
+	}
+
+	/**
+	 * @param nodes whether the nodes of the parse tree should get their strings.
+	 */
+	private Tree parse(String def, CharSequence s, boolean nodes) throws ParseException {
+		Tree t = definitions.get(def);
+		if (t == null) {
+			throw new RuntimeException("Unknown definition: " + def);
+		}
+		s = prepare(s);
+		lines = new LineIndex(s);
+		diagnostics = new ArrayList<Diagnostic>();
+		if (earley != null) {
+			return earley.parse(t, s);
+		}
+		Tree res = null;
+		ParseException error = null;
+		try {
+			res = recognize(t, s);
+		} catch (ParseException ex) {
+			error = new ParseException(failure());
+		}
+		if (recovering && (error != null || skipWhiteSpace(s, res.end, s.length()) != s.length())) {
+			resync = true;
+			errors = new IdentityHashMap<Tree, Diagnostic>();
+			try {
+				res = recognize(t, s);
+				error = null;
+				collectDiagnostics(res);
+			} catch (ParseException ex) {
+				error = new ParseException(failure());
+			} finally {
+				resync = false;
+				errors = null;
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+		if (nodes) {
+			res.setNodes(terminals);
+		}
 		int end = skipWhiteSpace(s, res.end, s.length());
-		res.node = s.substring(res.begin, res.end);
-		stack = null;
 		if (end != s.length()) {
-			if (end == 0) {
-				throw new ParseException("Unrecognized");
-			} else {
-				throw new ParseException("Recognized up to" + pos(res.end) + " because the parser didn't manage to parse" + pos(maxParsedChar));
+			if (!recovering) {
+				throw new ParseException(failure());
 			}
-		} else {
-			return res;
+			diagnostics.add(new Diagnostic(end, s.length(), Math.max(end, failPos), failure()));
 		}
+		return res;
 	}
 
-	private void calcPos(String s) {
-		linePositions = new int[s.length()];
-		columnPositions = new int[s.length()];
-		int line = 1;
-		int column = 1;
-		for (int i = 0; i < s.length(); i++) {
-			linePositions[i] = line;
-			columnPositions[i] = column;
-			if (s.charAt(i) == '\n') {
-				line++;
-				column = 1;
-			} else if (s.charAt(i) == '\t') {
-				column += 2;
-			} else {
-				column++;
+	private Tree recognize(Tree t, CharSequence s) throws ParseException {
+		return recognize(t, s, 0);
+	}
+
+	private Tree recognize(Tree t, CharSequence s, int begin) throws ParseException {
+		stack = new HashSet<StackElem>();
+		arena = new TreeArena();
+		maxParsedChar = begin;
+		failPos = -1;
+		expected.clear();
+		try {
+			return parse(t, s, begin, s.length());
+		} finally {
+			stack = null;
+			arena = null; // The parse tree doesn't keep the unused nodes of the arena.
+		}
+	}
+
+	/**
+	 * Adds the diagnostics of the error nodes of a tree in the order of the nodes.
+	 */
+	private void collectDiagnostics(Tree t) {
+		if (t.type == NodeType.error) {
+			diagnostics.add(errors.get(t));
+		}
+		for (Tree b : t.branches) {
+			if (b != null) {
+				collectDiagnostics(b);
 			}
 		}
 	}
 
-	protected abstract Tree extension(Tree t, String s, int begin, int end) throws ParseException;
+	/**
+	 * Recognizes a definition without body which is not a lexical rule.
+	 * @param t the identifier node which refers to the definition.
+	 * @param s the whole string.
+	 * @param begin the position where the definition should begin (whitespace is skipped).
+	 * @param end the end of the parsed substring (exclusive).
+	 * @return the parse tree or null if this is not an extension of the parser.
+	 */
+	protected Tree extension(Tree t, CharSequence s, int begin, int end) throws ParseException {
+		return null;
+	}
 	
-	protected int skipWhiteSpace(String s, int begin, int end) throws ParseException {
-		while (begin < end && Character.isWhitespace(s.charAt(begin))) {
-			begin++;
-		}
-		return begin;
+	protected int skipWhiteSpace(CharSequence s, int begin, int end) throws ParseException {
+		return CharScanner.skipWhiteSpace(s, begin, end);
 	}
 	
 	protected int maxParsedChar = 0;
 	
-	protected Tree parse(Tree t, String s, int begin, int end) throws ParseException {
+	protected Tree parse(Tree t, CharSequence s, int begin, int end) throws ParseException {
 		StackElem st = new StackElem(t, begin, end);
 		if (stack.contains(st)) {
-			throw new ParseException("Infinite recursion");
+			throw MISMATCH; // Infinite recursion.
 		}
 		stack.add(st);
 
 		try {
 			if (t.type == NodeType.token_keyword) {
 				begin = skipWhiteSpace(s, begin, end);
-				if (begin >= end) {
-					throw new ParseException("begin(" + begin + ") > end(" + end + ")");
-				}
-				if (s.charAt(begin) != '\'') {
-					throw new ParseException("Single quote expected at" + pos(begin));
+				if (begin >= end || s.charAt(begin) != '\'') {
+					throw expected(terminals.size() + TOKEN, begin);
 				}
 				for (int i = begin + 1; i < end; i++) {
 					char ch = s.charAt(i);
@@ -194,75 +853,61 @@ public abstract class Parser {
 						i++;
 					} else if (ch == '\'') {
 						maxParsed(i + 1);
-						return new Tree(s, begin, i + 1, t);
+						return arena.tree(s, begin, i + 1, t);
 					}
 				}
-				throw new ParseException("Closing single quote expected at" + pos(end - 1));
+				throw expected(terminals.size() + TOKEN, begin);
 
 			} else if (t.type == NodeType.identifier_keyword) {
 
 				begin = skipWhiteSpace(s, begin, end);
 				if (begin >= end) {
-					throw new ParseException("begin(" + begin + ") > end(" + end + ")");
+					throw expected(terminals.size() + IDENTIFIER, begin);
 				}
 				for (int i = begin; i < end; i++) {
 					if (!Character.isJavaIdentifierPart(s.charAt(i))) {
-						if (i > begin) {
-							if (!keyword(s.substring(begin, i)) && Character.isJavaIdentifierStart(s.charAt(begin))) {
-								maxParsed(i);
-								return new Tree(s, begin, i, t);
-							} else {
-								throw new ParseException("Identifier expected at" + pos(begin));
-							}
-						} else {
-							throw new ParseException("Identifier expected at" + pos(begin));
+						if (i > begin && !terminals.keyword(s, begin, i) && Character.isJavaIdentifierStart(s.charAt(begin))) {
+							maxParsed(i);
+							return arena.tree(s, begin, i, t);
 						}
+						throw expected(terminals.size() + IDENTIFIER, begin);
 					}
 				}
-				return new Tree(s, begin, end, t);
+				return arena.tree(s, begin, end, t);
 
 			} else if (t.type == NodeType.new_line_keyword) {
-				if (begin >= end) {
-					throw new ParseException("begin(" + begin + ") > end(" + end + ")");
-				}
-				if (s.charAt(begin) == '\n') {
+				if (begin < end && s.charAt(begin) == '\n') {
 					maxParsed(begin + 1);
-					return new Tree(s, begin, begin + 1, t);
-				} else {
-					throw new ParseException("New line expected at" + pos(begin));
+					return arena.tree(s, begin, begin + 1, t);
 				}
+				throw expected(terminals.size() + NEW_LINE, begin);
 
 			} else if (t.type == NodeType.token) {
 
 				begin = skipWhiteSpace(s, begin, end);
-				if (begin >= end) {
-					throw new ParseException("begin(" + begin + ") > end(" + end + ")");
-				}
-				String token = escape(t.node.substring(1, t.node.length() - 1));
-				if (end - begin >= token.length() && s.substring(begin, begin + token.length()).equals(token)) {
-					if (Character.isLetter(token.charAt(token.length() - 1)) && begin + token.length() < s.length() &&
-							Character.isLetter(s.charAt(begin + token.length()))) {
-						throw new ParseException("May not jump to the middle of a token at" + pos(begin + token.length()));
-					}
-					maxParsed(begin + token.length());
-					boolean ok = true;
-					if (keyword(s.substring(begin, begin + token.length()))) {
-						ok = begin + token.length() >= end ||
-								(begin + token.length() < end && !Character.isJavaIdentifierPart(s.charAt(begin + token.length())));
-					}
-					if (ok) {
-						return new Tree(s, begin, begin + token.length(), t);
-					}
+				if (begin < end && terminals.matches(t.id, s, begin, end)) {
+					int tokenEnd = begin + terminals.token(t.id).length();
+					maxParsed(tokenEnd);
+					return arena.tree(s, begin, tokenEnd, t);
 				}
-				throw new ParseException("Token '" + token + "' expected at" + pos(begin));
+				throw expected(t.id, begin);
 
 			} else if (t.type == NodeType.identifier) {
 
+				if (t.id >= 0) { // A lexical rule.
+					begin = skipWhiteSpace(s, begin, end);
+					int e = begin < end ? lexicalRuleIds[t.id].match(s, begin, end) : -1;
+					if (e < 0) {
+						throw expected(terminals.size() + LEXICAL_RULES + t.id, begin);
+					}
+					maxParsed(e);
+					return arena.tree(s, begin, e, t);
+				}
 				Tree def = definitions.get(t.node);
 				if (def == null) {
 					begin = skipWhiteSpace(s, begin, end);
 					if (begin >= end) {
-						throw new ParseException("begin(" + begin + ") > end(" + end + ")");
+						throw MISMATCH;
 					}
 					Tree res = extension(t, s, begin, end);
 					if (res == null) {
@@ -275,54 +920,93 @@ public abstract class Parser {
 
 			} else if (t.type == NodeType.sequence) {
 
-				Tree res = new Tree(NodeType.sequence, t);
+				Tree res = arena.tree(NodeType.sequence, t);
 				for (Tree b : t.branches) {
 					Tree u = parse(b, s, begin, end);
 					begin = u.end;
-					res.addBranch(u);
+					res.link(u);
 				}
 				return res;
 
 			} else if (t.type == NodeType.choice) {
 
-				Tree res = new Tree(NodeType.choice, t);
-				StringBuffer accumulatedError = new StringBuffer();
-				for (Tree b : t.branches) {
+				Tree res = arena.tree(NodeType.choice, t);
+				int[] order = choiceOrder.get(t);
+				int mark = arena.mark();
+				for (int i = 0; i < t.branches.size(); i++) {
+					int k = order == null ? i : order[i];
 					try {
-						Tree u = parse(b, s, begin, end);
-						res.addBranch(u);
+						Tree u = parse(t.branches.get(k), s, begin, end);
+						while (res.branches.size() < k) {
+							res.link(null); // The alternatives before the matched one are null.
+						}
+						res.link(u);
+						if (profile != null) {
+							profile.record(t, k);
+						}
 						return res;
 					} catch (ParseException ex) {
-						accumulatedError.append(ex.getMessage());
-						accumulatedError.append('\n');
-						res.addBranch(null);
+						arena.rewind(mark);
 					}
 				}
-				throw new ParseException(accumulatedError.toString());
+				throw MISMATCH; // The alternatives have recorded what they expected.
 
 			} else if (t.type == NodeType.optional) {
 
+				int mark = arena.mark();
 				try {
 					return parse(t.branches.get(0), s, begin, end);
 				} catch (ParseException ex) {
-					return new Tree(s, begin, begin, t);
+					arena.rewind(mark);
+					return arena.tree(s, begin, begin, t);
 				}
 
 			} else if (t.type == NodeType.repetition) {
 
-				Tree res = new Tree(s, begin, begin, t);
+				Tree res = arena.tree(s, begin, begin, t);
 				res.type = NodeType.repetition;
+				boolean sync = resync && syncRepetitions.containsKey(t);
 				while (true) {
+					int mark = arena.mark();
+					int max = maxParsedChar;
+					int savedFailPos = failPos;
+					BitSet savedExpected = null;
+					if (sync) {
+						// The furthest position reached and the furthest failure of this element.
+						maxParsedChar = begin;
+						savedExpected = expected;
+						expected = new BitSet();
+						failPos = -1;
+					}
 					try {
 						Tree u = parse(t.branches.get(0), s, begin, end);
 						begin = u.end;
-						res.addBranch(u);
+						res.link(u);
 					} catch (ParseException ex) {
-						break;
+						arena.rewind(mark);
+						Tree u = sync ? skipError(t, s, begin, end) : null;
+						if (u == null) {
+							break;
+						}
+						begin = u.end;
+						res.link(u);
+					} finally {
+						maxParsedChar = Math.max(max, maxParsedChar);
+						if (sync) {
+							restoreFailure(savedFailPos, savedExpected);
+						}
 					}
 				}
 				return res;
 
+			} else if (t.type == NodeType.list) {
+
+				return list(t, s, begin, end);
+
+			} else if (t.type == NodeType.precedence) {
+
+				return precedence(t, s, begin, end, 1);
+
 			} else {
 				throw new RuntimeException("Unknown tree type: " + t.type);
 			}
@@ -332,6 +1016,325 @@ public abstract class Parser {
 		}
 	}
 	
+	/**
+	 * Parses a separated list: while the last element is followed by the separator, the next
+	 * element is parsed. The separator is matched directly, so the end of the list doesn't
+	 * cost an exception unless a separator is not followed by an element.
+	 * @param t a definition of type 'list'.
+	 * @return a tree of type 'list' whose branches are the elements and the separators alternately.
+	 */
+	private Tree list(Tree t, CharSequence s, int begin, int end) throws ParseException {
+		Tree elem = t.branches.get(0);
+		Tree sep = t.branches.get(1);
+		Tree res = arena.tree(NodeType.list, t);
+		res.link(parse(elem, s, begin, end));
+		int sepLength = terminals.token(sep.id).length();
+		while (true) {
+			int pos = skipWhiteSpace(s, res.end, end);
+			if (pos >= end || !terminals.matches(sep.id, s, pos, end)) {
+				expected(sep.id, pos); // The list might have continued.
+				break;
+			}
+			maxParsed(pos + sepLength);
+			int mark = arena.mark();
+			Tree u;
+			try {
+				u = parse(elem, s, pos + sepLength, end);
+			} catch (ParseException ex) {
+				arena.rewind(mark);
+				break;
+			}
+			res.link(arena.tree(s, pos, pos + sepLength, sep));
+			res.link(u);
+		}
+		return res;
+	}
+
+	/**
+	 * Parses an operator expression by precedence climbing: an operand is parsed and while
+	 * it is followed by an operator of a high enough level, the right operand is parsed with
+	 * the operators of the higher levels (or of the same level if the operator is right-associative).
+	 * The operands of the adjacent left-associative operators of the same level are put into a single node.<br/>
+	 * If an operator is not followed by an operand then it doesn't belong to the expression
+	 * (e.g. '>>' in 'a >>= b') and the expression ends before it.
+	 * @param t a definition of type 'precedence'.
+	 * @param level the lowest level (branch number in 't') whose operators may be parsed.
+	 * @return the operand if there are no operators, otherwise a tree of type 'precedence'
+	 *   whose branches are operands and operators alternately.
+	 */
+	private Tree precedence(Tree t, CharSequence s, int begin, int end, int level) throws ParseException {
+		Tree res = parse(t.branches.get(0), s, begin, end);
+		Tree node = null;
+		while (true) {
+			int pos = skipWhiteSpace(s, res.end, end);
+			Tree op = operator(t, s, pos, end, level);
+			if (op == null) {
+				break;
+			}
+			int opEnd = pos + terminals.token(op.id).length();
+			Tree opLevel = level(op);
+			int mark = arena.mark();
+			Tree rhs;
+			try {
+				if (op.parent != opLevel) {
+					rhs = parse(op.parent.branches.get(1), s, opEnd, end); // A postfix operator, e.g. 'instanceof' Type.
+				} else {
+					int i = t.branches.indexOf(opLevel);
+					rhs = precedence(t, s, opEnd, end, opLevel.type == NodeType.right ? i : i + 1);
+				}
+			} catch (ParseException ex) {
+				arena.rewind(mark);
+				break;
+			}
+			maxParsed(opEnd);
+			if (node == null || level(node.branches.get(1).def) != opLevel) {
+				node = arena.tree(NodeType.precedence, t);
+				node.link(res);
+			}
+			node.link(arena.tree(s, pos, opEnd, op));
+			node.link(rhs);
+			res = node;
+		}
+		return res;
+	}
+
+	/**
+	 * Finds the longest operator of an operator table which matches at a given position.
+	 * The operators which are considered are expected at the position, since the expression
+	 * might have continued with any of them.
+	 * @param t a definition of type 'precedence'.
+	 * @param level the lowest level whose operators are considered.
+	 * @return the operator token of the definition or null.
+	 */
+	private Tree operator(Tree t, CharSequence s, int pos, int end, int level) {
+		if (pos >= failPos) {
+			for (int i = level; i < t.branches.size(); i++) {
+				for (Tree op : t.branches.get(i).branches) {
+					expected(token(op).id, pos);
+				}
+			}
+		}
+		if (pos >= end) {
+			return null;
+		}
+		Tree res = null;
+		for (int i = level; i < t.branches.size(); i++) {
+			for (Tree b : t.branches.get(i).branches) {
+				Tree op = token(b);
+				if (terminals.matches(op.id, s, pos, end) &&
+						(res == null || terminals.token(op.id).length() > terminals.token(res.id).length())) {
+					res = op;
+				}
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @param op an operator of a level of an operator table: a token or a postfix operator
+	 *   (a sequence of a token and an operand).
+	 * @return the token of the operator.
+	 */
+	static Tree token(Tree op) {
+		return op.type == NodeType.sequence ? op.branches.get(0) : op;
+	}
+
+	/**
+	 * @param op the token of an operator of an operator table.
+	 * @return the level of the operator.
+	 */
+	static Tree level(Tree op) {
+		return op.parent.type == NodeType.sequence ? op.parent.parent : op.parent;
+	}
+
+	/**
+	 * Skips a syntax error in an element of a repetition of a sync rule (see setRecovering()).
+	 * @param t the repetition.
+	 * @param begin the position where the element has failed to match.
+	 * @return an error node or null if the repetition should end.
+	 */
+	private Tree skipError(Tree t, CharSequence s, int begin, int end) throws ParseException {
+		int pos = skipWhiteSpace(s, begin, end);
+		if (pos >= end || !mayBegin(syncRepetitions.get(t), s, pos, end)) {
+			return null;
+		}
+		int errorPos = Math.max(pos, failPos);
+		String message = failure();
+		int resume = resynchronize(t.branches.get(0), s, pos, end);
+		if (resume <= pos) {
+			return null;
+		}
+		Tree res = arena.tree(NodeType.error, t.branches.get(0));
+		res.s = s;
+		res.begin = pos;
+		res.end = resume;
+		errors.put(res, new Diagnostic(pos, resume, errorPos, message));
+		return res;
+	}
+
+	/**
+	 * @param first a FIRST set.
+	 * @return 'true' if the text at the given position begins with a terminal of the set.
+	 */
+	private boolean mayBegin(Set<String> first, CharSequence s, int pos, int end) {
+		for (String f : first) {
+			if (f.startsWith("'")) {
+				if (terminals.matches(terminals.id(escape(f.substring(1, f.length() - 1))), s, pos, end)) {
+					return true;
+				}
+			} else if (f.equals("IDENTIFIER")) {
+				if (Character.isJavaIdentifierStart(s.charAt(pos))) {
+					return true;
+				}
+			} else if (lexicalRules.containsKey(f)) {
+				if (lexicalRules.get(f).match(s, pos, end) >= 0) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Finds the position where the parse resumes after a syntax error (see setRecovering()).
+	 * The brackets are balanced and the quoted strings are skipped.
+	 * @param elem the element of the repetition in which the error has occurred.
+	 * @param begin the beginning of the element.
+	 * @return the end of the skipped text.
+	 */
+	protected int resynchronize(Tree elem, CharSequence s, int begin, int end) throws ParseException {
+		int depth = 0;
+		int i = begin;
+		while (i < end) {
+			int next = skipWhiteSpace(s, i, end);
+			if (next >= end) {
+				return i; // The white space at the end is not skipped.
+			}
+			if (depth == 0 && next > begin && CharScanner.indexOf(s, '\n', i, next) >= 0 && startsElement(elem, s, next, end)) {
+				return i;
+			}
+			i = next;
+			char ch = s.charAt(i);
+			if (ch == '"' || ch == '\'') {
+				for (i++; i < end && s.charAt(i) != ch && s.charAt(i) != '\n'; i++) {
+					if (s.charAt(i) == '\\') {
+						i++;
+					}
+				}
+				i++;
+			} else if (ch == '(' || ch == '[' || ch == '{') {
+				depth++;
+				i++;
+			} else if (ch == ')' || ch == ']' || ch == '}') {
+				if (depth == 0) {
+					return i; // The bracket belongs to the enclosing expression.
+				}
+				depth--;
+				i++;
+				if (depth == 0 && ch == '}') {
+					return i;
+				}
+			} else {
+				if (depth == 0) {
+					for (int id : syncTokenIds) {
+						if (terminals.matches(id, s, i, end)) {
+							return i + terminals.token(id).length();
+						}
+					}
+				}
+				i++;
+			}
+		}
+		return Math.min(i, end);
+	}
+
+	/**
+	 * @return 'true' if an element of a repetition matches at the given position.
+	 */
+	private boolean startsElement(Tree elem, CharSequence s, int begin, int end) {
+		int mark = arena.mark();
+		int max = maxParsedChar;
+		int savedFailPos = failPos;
+		BitSet savedExpected = expected;
+		expected = new BitSet();
+		resync = false;
+		try {
+			parse(elem, s, begin, end);
+			return true;
+		} catch (ParseException ex) {
+			return false;
+		} finally {
+			resync = true;
+			arena.rewind(mark);
+			maxParsedChar = max;
+			failPos = savedFailPos; // The trial doesn't report its failures.
+			expected = savedExpected;
+		}
+	}
+
+	/**
+	 * Records that a terminal has been expected at a position.
+	 * @param terminal a token number or terminals.size() plus IDENTIFIER, TOKEN, NEW_LINE or
+	 *   LEXICAL_RULES + the number of a lexical rule.
+	 * @param pos the position.
+	 * @return the exception to throw.
+	 */
+	private ParseException expected(int terminal, int pos) {
+		if (pos > failPos) {
+			failPos = pos;
+			expected.clear();
+		}
+		if (pos == failPos) {
+			expected.set(terminal);
+		}
+		return MISMATCH;
+	}
+
+	/**
+	 * Merges a saved failure with the current one; the furthest one is kept.
+	 */
+	private void restoreFailure(int savedFailPos, BitSet savedExpected) {
+		if (savedFailPos > failPos) {
+			failPos = savedFailPos;
+			expected = savedExpected;
+		} else if (savedFailPos == failPos) {
+			expected.or(savedExpected);
+		}
+	}
+
+	/**
+	 * @return the message of the furthest failure, e.g. "Expected one of ';', '=' at line 3, column 5".
+	 */
+	private String failure() {
+		if (failPos < 0) {
+			return "Unrecognized at" + pos(maxParsedChar);
+		}
+		int tokens = terminals.size();
+		StringBuffer res = new StringBuffer();
+		for (int i = expected.nextSetBit(0); i >= 0; i = expected.nextSetBit(i + 1)) {
+			if (res.length() > 0) {
+				res.append(", ");
+			}
+			if (i < tokens) {
+				res.append('\'').append(terminals.token(i)).append('\'');
+			} else if (i == tokens + IDENTIFIER) {
+				res.append("IDENTIFIER");
+			} else if (i == tokens + TOKEN) {
+				res.append("TOKEN");
+			} else if (i == tokens + NEW_LINE) {
+				res.append("NEW_LINE");
+			} else {
+				LexicalRule rule = lexicalRuleIds[i - tokens - LEXICAL_RULES];
+				for (String def : lexicalRules.keySet()) {
+					if (lexicalRules.get(def) == rule) {
+						res.append(def);
+					}
+				}
+			}
+		}
+		return (expected.cardinality() > 1 ? "Expected one of " : "Expected ") + res + " at" + pos(failPos);
+	}
+
 	private void maxParsed(int pos) {
 		if (pos > maxParsedChar) {
 			maxParsedChar = pos;
@@ -339,7 +1342,10 @@ public abstract class Parser {
 	}
 
 	protected String pos(int strPos) {
-		return " line " + linePositions[strPos] + ", column " + columnPositions[strPos];
+		if (stream != null) {
+			return " line " + stream.line(strPos) + ", column " + stream.column(strPos);
+		}
+		return " line " + lines.line(strPos) + ", column " + lines.column(strPos);
 	}
 
 	private String escape(String s) {
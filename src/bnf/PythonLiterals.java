@@ -0,0 +1,109 @@
+/*
+ * Lexical rules for the Python literals.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+/**
+ *
+ * Lexical rules for the Python literals:<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- NUMBER: decimal, hex (0x), octal (0o) and binary (0b) integers, floating point
+ * numbers with optional exponent and imaginary numbers (a 'j' suffix), with underscores between the digits;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- STRING: a string in single, double or triple quotes with an optional prefix
+ * such as r, b or f.<br/>
+ * A sequence of strings is matched by the grammar (STRING+).<br/>
+ * None of the scanners allocates memory.
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public class PythonLiterals {
+
+	private static final String STRING_PREFIXES = "rRbBuUfF";
+
+	public final LexicalRule number = new LexicalRule() {
+		@Override
+		public int match(CharSequence s, int begin, int end) {
+			char ch = s.charAt(begin);
+			if (ch == '0' && begin + 1 < end) {
+				int radix = 0;
+				switch (s.charAt(begin + 1)) {
+				case 'x': case 'X': radix = 16; break;
+				case 'o': case 'O': radix = 8; break;
+				case 'b': case 'B': radix = 2; break;
+				}
+				if (radix > 0) {
+					int i = begin + 2;
+					while (i < end && (Character.digit(s.charAt(i), radix) >= 0 || s.charAt(i) == '_')) {
+						i++;
+					}
+					return i > begin + 2 ? i : -1;
+				}
+			}
+			if (!digit(ch) && !(ch == '.' && begin + 1 < end && digit(s.charAt(begin + 1)))) {
+				return -1;
+			}
+			int i = digits(s, begin, end);
+			if (i < end && s.charAt(i) == '.') {
+				i = digits(s, i + 1, end);
+			}
+			if (i < end && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+				int j = i + 1;
+				if (j < end && (s.charAt(j) == '+' || s.charAt(j) == '-')) {
+					j++;
+				}
+				if (j < end && digit(s.charAt(j))) {
+					i = digits(s, j, end);
+				}
+			}
+			if (i < end && (s.charAt(i) == 'j' || s.charAt(i) == 'J')) {
+				i++;
+			}
+			return i;
+		}
+	};
+
+	public final LexicalRule string = new LexicalRule() {
+		@Override
+		public int match(CharSequence s, int begin, int end) {
+			int i = begin;
+			while (i < end && i - begin < 2 && STRING_PREFIXES.indexOf(s.charAt(i)) >= 0) {
+				i++;
+			}
+			if (i >= end || (s.charAt(i) != '\'' && s.charAt(i) != '"')) {
+				return -1;
+			}
+			return LayoutText.stringEnd(s, i, end);
+		}
+	};
+
+	private static boolean digit(char ch) {
+		return ch >= '0' && ch <= '9';
+	}
+
+	/**
+	 * @return the end of the digits and underscores which begin at the given position.
+	 */
+	private static int digits(CharSequence s, int begin, int end) {
+		while (begin < end && (digit(s.charAt(begin)) || s.charAt(begin) == '_')) {
+			begin++;
+		}
+		return begin;
+	}
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Python parser based on the BNF definition parser.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * This is a Python parser based on BNF definition parser which uses
+ * the Python grammar provided in python.bnf (the Grammar/Grammar file
+ * of CPython 3.3).<br/>
+ * The grammar refers to the layout tokens NEWLINE, INDENT, DEDENT and ENDMARKER, which are
+ * inserted into the text by a tokenizer (see LayoutText) before it is parsed, and to the
+ * lexical rules NAME, NUMBER and STRING. Since the grammar is written for a tokenizer,
+ * only the longest token matches at a position.
+ *
+ * @author Zuben El Acribi
+ */
+public class PythonParser extends Parser {
+
+	/**
+	 * Constructs a Python Parser.
+	 * @throws ParserInitializationException if there is a syntax error
+	 *   in the BNF definition or an IOException occurs.
+	 */
+	public PythonParser() throws ParserInitializationException {
+		super();
+	}
+
+	@Override
+	public void initialize() throws ParserInitializationException {
+		try {
+			definitions.putAll(BnfDefParser.parseDefinitions(new File("python.bnf")));
+		} catch (IOException ex) {
+			throw new ParserInitializationException(ex);
+		} catch (ParseException ex) {
+			throw new ParserInitializationException(ex);
+		}
+
+		// The tokens which the Python tokenizer produces are recognized by lexical rules.
+		PythonLiterals literals = new PythonLiterals();
+		lexicalRule("NUMBER", literals.number);
+		lexicalRule("STRING", literals.string);
+		lexicalRule("NAME", new LexicalRule() {
+			@Override
+			public int match(CharSequence s, int begin, int end) {
+				char ch = s.charAt(begin);
+				if (!Character.isUnicodeIdentifierStart(ch) && ch != '_') {
+					return -1;
+				}
+				int i = begin + 1;
+				while (i < end && Character.isUnicodeIdentifierPart(s.charAt(i))) {
+					i++;
+				}
+				return terminals.keyword(s, begin, i) ? -1 : i;
+			}
+		});
+		lexicalRule("NEWLINE", layout(LayoutText.NEWLINE));
+		lexicalRule("INDENT", layout(LayoutText.INDENT));
+		lexicalRule("DEDENT", layout(LayoutText.DEDENT));
+		lexicalRule("ENDMARKER", layout(LayoutText.ENDMARKER));
+
+		// In the recovering mode a syntax error is skipped up to the next statement.
+		syncRule("stmt");
+	}
+
+	public ParseTree parse(String path) throws ParseException {
+		return parse(new File(path));
+	}
+
+	public ParseTree parse(File f) throws ParseException {
+		return parse("file_input", f);
+	}
+
+	/**
+	 * @return a lexical rule which matches a layout token.
+	 */
+	private static LexicalRule layout(final char token) {
+		return new LexicalRule() {
+			@Override
+			public int match(CharSequence s, int begin, int end) {
+				return layoutToken(s, begin) == token ? begin + 1 : -1;
+			}
+		};
+	}
+
+	private static char layoutToken(CharSequence s, int pos) {
+		return s instanceof LayoutText ? ((LayoutText) s).token(pos) : 0;
+	}
+
+	@Override
+	protected boolean longestMatch() {
+		return true;
+	}
+
+	@Override
+	protected CharSequence prepare(CharSequence s) throws ParseException {
+		return s instanceof LayoutText ? s : new LayoutText(s);
+	}
+
+	@Override
+	protected int skipWhiteSpace(CharSequence s, int begin, int end) throws ParseException {
+		int b = begin;
+		while (true) {
+			b = super.skipWhiteSpace(s, b, end);
+			if (b < end && s.charAt(b) == '#') {
+				while (b < end && s.charAt(b) != '\n' && layoutToken(s, b) == 0) {
+					b++;
+				}
+			} else if (b < end - 1 && s.charAt(b) == '\\' && (s.charAt(b + 1) == '\n' || s.charAt(b + 1) == '\r')) {
+				b += 2;
+			}
+			if (b == begin) {
+				return begin;
+			}
+			begin = b;
+		}
+	}
+
+}
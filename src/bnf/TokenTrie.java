@@ -0,0 +1,250 @@
+/*
+ * A trie which matches all tokens of a grammar at once.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ *
+ * All tokens (the quoted strings) of a grammar compiled into a single trie.<br/>
+ * Every distinct token gets a number. A single scan at a given position finds
+ * all tokens which match there, so when the parser tries several tokens at the
+ * same position (which is what happens in a choice) the input is read just once.<br/>
+ * A token matches if:<br/>
+ * 1. Its characters are found at the given position;<br/>
+ * 2. If it ends with a letter it is not followed by a letter (we may not jump to the middle of a word);<br/>
+ * 3. If it is a keyword it is not followed by an identifier symbol.<br/>
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public class TokenTrie {
+
+	/**
+	 * Transitions for characters in the range [0..127], by trie node.
+	 */
+	private ArrayList<int[]> ascii = new ArrayList<int[]>();
+
+	/**
+	 * Transitions for the other characters, by (node << 16) | character.
+	 */
+	private HashMap<Long, Integer> other = new HashMap<Long, Integer>();
+
+	/**
+	 * The token which ends at a given trie node or -1.
+	 */
+	private int[] terminal = new int[16];
+
+	/**
+	 * The tokens (unescaped), by token number.
+	 */
+	private ArrayList<String> tokens = new ArrayList<String>();
+
+	private boolean[] endsWithLetter;
+	private boolean[] keyword;
+
+	/**
+	 * Whether only the longest token matches at a position (see Parser.longestMatch()).
+	 */
+	private boolean longestMatch;
+
+	/**
+	 * The scan number in which a token has matched, by token number.
+	 */
+	private int[] matched;
+
+	private int scanNo;
+	private CharSequence scanned;
+	private int scannedBegin = -1, scannedEnd = -1;
+
+	public TokenTrie() {
+		newNode();
+	}
+
+	/**
+	 * Adds a token to the trie.
+	 * @param token the unescaped token.
+	 * @return the token number; a token added twice gets the same number.
+	 */
+	public int add(String token) {
+		int node = 0;
+		for (int i = 0; i < token.length(); i++) {
+			int next = next(node, token.charAt(i));
+			if (next < 0) {
+				next = newNode();
+				char ch = token.charAt(i);
+				if (ch < 128) {
+					ascii.get(node)[ch] = next;
+				} else {
+					other.put(((long) node << 16) | ch, next);
+				}
+			}
+			node = next;
+		}
+		if (terminal[node] < 0) {
+			terminal[node] = tokens.size();
+			tokens.add(token);
+		}
+		return terminal[node];
+	}
+
+	/**
+	 * @param token the unescaped token.
+	 * @return the token number or -1 if the token has not been added.
+	 */
+	public int id(String token) {
+		int node = 0;
+		for (int i = 0; i < token.length() && node >= 0; i++) {
+			node = next(node, token.charAt(i));
+		}
+		return node < 0 ? -1 : terminal[node];
+	}
+
+	/**
+	 * Must be called after all tokens are added.
+	 * @param parser the parser which tells which tokens are keywords.
+	 */
+	void compile(Parser parser) {
+		endsWithLetter = new boolean[tokens.size()];
+		keyword = new boolean[tokens.size()];
+		matched = new int[tokens.size()];
+		for (int i = 0; i < tokens.size(); i++) {
+			String token = tokens.get(i);
+			endsWithLetter[i] = token.length() > 0 && Character.isLetter(token.charAt(token.length() - 1));
+			keyword[i] = token.length() > 0 && parser.keyword(token);
+		}
+		longestMatch = parser.longestMatch();
+	}
+
+	/**
+	 * @param id a token number.
+	 * @return the unescaped token.
+	 */
+	public String token(int id) {
+		return tokens.get(id);
+	}
+
+	/**
+	 * @return the number of distinct tokens.
+	 */
+	public int size() {
+		return tokens.size();
+	}
+
+	/**
+	 * Tells whether the given token matches at the given position. The result of
+	 * the scan is kept, so testing another token at the same position is cheap.
+	 * @param id a token number.
+	 * @param s the whole string.
+	 * @param begin the position to test.
+	 * @param end the end of the parsed substring (exclusive).
+	 * @return 'true' if the token matches.
+	 */
+	public boolean matches(int id, CharSequence s, int begin, int end) {
+		if (s != scanned || begin != scannedBegin || end != scannedEnd) {
+			scan(s, begin, end);
+		}
+		return matched[id] == scanNo;
+	}
+
+	/**
+	 * Finds all tokens which match at the given position.
+	 * @param s the whole string.
+	 * @param begin the position to test.
+	 * @param end the end of the parsed substring (exclusive).
+	 */
+	private void scan(CharSequence s, int begin, int end) {
+		scanNo++;
+		scanned = s;
+		scannedBegin = begin;
+		scannedEnd = end;
+		int node = 0;
+		int longest = -1;
+		for (int i = begin; ; i++) {
+			int id = terminal[node];
+			if (id >= 0 && boundary(id, s, i, end)) {
+				if (longestMatch) {
+					longest = id;
+				} else {
+					matched[id] = scanNo;
+				}
+			}
+			if (i >= end) {
+				break;
+			}
+			node = next(node, s.charAt(i));
+			if (node < 0) {
+				break;
+			}
+		}
+		if (longest >= 0) {
+			matched[longest] = scanNo;
+		}
+	}
+
+	private boolean boundary(int id, CharSequence s, int pos, int end) {
+		if (endsWithLetter[id] && pos < s.length() && Character.isLetter(s.charAt(pos))) {
+			return false; // May not jump to the middle of a token.
+		}
+		if (keyword[id] && pos < end && Character.isJavaIdentifierPart(s.charAt(pos))) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param s the whole string.
+	 * @param begin the beginning of a substring (inclusive).
+	 * @param end the end of a substring (exclusive).
+	 * @return 'true' if the substring is a keyword.
+	 */
+	public boolean keyword(CharSequence s, int begin, int end) {
+		int node = 0;
+		for (int i = begin; i < end && node >= 0; i++) {
+			node = next(node, s.charAt(i));
+		}
+		return node >= 0 && terminal[node] >= 0 && keyword[terminal[node]];
+	}
+
+	private int next(int node, char ch) {
+		if (ch < 128) {
+			return ascii.get(node)[ch];
+		}
+		Integer next = other.get(((long) node << 16) | ch);
+		return next == null ? -1 : next;
+	}
+
+	private int newNode() {
+		int[] transitions = new int[128];
+		for (int i = 0; i < transitions.length; i++) {
+			transitions[i] = -1;
+		}
+		ascii.add(transitions);
+		if (ascii.size() > terminal.length) {
+			int[] copy = new int[terminal.length << 1];
+			System.arraycopy(terminal, 0, copy, 0, terminal.length);
+			terminal = copy;
+		}
+		terminal[ascii.size() - 1] = -1;
+		return ascii.size() - 1;
+	}
+
+}
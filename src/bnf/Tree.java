@@ -20,6 +20,7 @@
 package bnf;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -51,7 +52,7 @@ public class Tree {
 	/**
 	 * The whole string on which a parse tree has been built over.
 	 */
-	public String s;
+	public CharSequence s;
 	
 	/**
 	 * The beginning (inclusive) and the end (exclusive) of the substring in 's'.
@@ -59,7 +60,7 @@ public class Tree {
 	public int begin, end;
 	
 	/**
-	 * The shortcut for s.substring(begin, end).
+	 * The shortcut for s.subSequence(begin, end).toString().
 	 */
 	public String node;
 	
@@ -75,7 +76,13 @@ public class Tree {
 	 * are 0 then this node's 'begin' should be equal to 'end' (this node matches the
 	 * empty string).<br/>
 	 * If this is a repetition then it can have any number of branches (0 or more)
-	 * and every branch should match this node's definition.
+	 * and every branch should match this node's definition.<br/>
+	 * If this is a list then its branches are the elements and the separators
+	 * alternately (see elements()).<br/>
+	 * If this is a precedence then its branches are operands and operators alternately
+	 * (the operands may be precedence nodes of higher levels, and the operand after a postfix
+	 * operator such as 'instanceof' matches its own definition); an operator expression
+	 * without operators is represented by its operand.
 	 */
 	public NodeType type;
 	
@@ -106,7 +113,8 @@ public class Tree {
 
 	/**
 	 * This node's branches.<br/>If the node is a terminal (type=token) then
-	 * it shouldn't have branches and in all other cases except for type=choice
+	 * it shouldn't have branches; all terminals share an empty list which may not be modified
+	 * (addBranch() gives a node its own list). In all other cases except for type=choice
 	 * it should have the same number of branches as in def.branches and
 	 * all of them should be non-null.<br/>
 	 * If type=choice just one branch should be non-null and all previous ones
@@ -114,7 +122,43 @@ public class Tree {
 	 * the non-null branches may be the last one, i.e. there are no branches
 	 * after the non-null one).
 	 */
-	public ArrayList<Tree> branches = new ArrayList<Tree>();
+	public ArrayList<Tree> branches;
+
+	/**
+	 * The branches of the terminals. Most nodes of a parse tree are terminals, so they
+	 * don't allocate lists of their own.
+	 */
+	@SuppressWarnings("serial")
+	private static final ArrayList<Tree> NO_BRANCHES = new ArrayList<Tree>(0) {
+
+		@Override
+		public boolean add(Tree t) {
+			throw new UnsupportedOperationException("A terminal has no branches");
+		}
+
+		@Override
+		public void add(int index, Tree t) {
+			throw new UnsupportedOperationException("A terminal has no branches");
+		}
+
+		@Override
+		public boolean addAll(Collection<? extends Tree> c) {
+			throw new UnsupportedOperationException("A terminal has no branches");
+		}
+
+		@Override
+		public boolean addAll(int index, Collection<? extends Tree> c) {
+			throw new UnsupportedOperationException("A terminal has no branches");
+		}
+
+	};
+
+	/**
+	 * The number given to a node of a BNF definition when the parser compiles
+	 * its definitions, e.g. the token number of a token. It is -1 for the nodes
+	 * of a parse tree.
+	 */
+	int id = -1;
 
 	/**
 	 * Constructs a tree with a given type.<br/>
@@ -125,11 +169,19 @@ public class Tree {
 	 * @param annotation the definition of this node.
 	 */
 	public Tree(NodeType type, Tree annotation) {
+		this.branches = new ArrayList<Tree>();
 		this.type = type;
 		this.begin = this.end = -1; // 'begin' and 'end' should be defined in addBranch().
 		this.def = annotation;
 	}
 
+	/**
+	 * Constructs a terminal of a TreeArena; it is initialized by reset().
+	 */
+	Tree() {
+		this.branches = NO_BRANCHES;
+	}
+
 	/**
 	 * This constructor is used when parsing a terminal
 	 * because in this case we know exactly the beginning and the end
@@ -148,6 +200,7 @@ public class Tree {
 	 * 4.1. TOKEN has type of 'token_keyword'<br/>
 	 * 4.2. IDENTIFIER has type of 'identifier_keyword'<br/>
 	 * 4.3. NEW_LINE has type of 'new_line_keyword'<br/>
+	 * 4.4. LEFT and RIGHT have types of 'left' and 'right' (the associativity of an operator table level)<br/>
 	 * 5. If the node's string contains identifier symbols only then
 	 * it is an identifier.<br/>
 	 * @param s the whole string over which a parse tree is being built.
@@ -157,38 +210,156 @@ public class Tree {
 	 * @throws InvalidIdentifierException if the node's type is inferred to be 'identifier'
 	 *   but contains non-identifier symbols.
 	 */
-	public Tree(String s, int begin, int end, Tree annotation) throws InvalidIdentifierException {
+	public Tree(CharSequence s, int begin, int end, Tree annotation) throws InvalidIdentifierException {
+		this.branches = NO_BRANCHES;
 		this.s = s;
 		this.begin = begin;
 		this.end = end;
-		this.node = s.substring(begin, end);
+		this.node = s.subSequence(begin, end).toString();
 		this.def = annotation;
+		this.type = type(s, begin, end, annotation);
+	}
 
-		if (node.length() == 0 ||
-				(node.startsWith("'") && node.endsWith("'")) ||
-				(node.startsWith("\"") && node.endsWith("\"")) ||
+	/**
+	 * Infers the type of a terminal node as described in Tree(CharSequence, int, int, Tree).
+	 */
+	private static NodeType type(CharSequence s, int begin, int end, Tree annotation) throws InvalidIdentifierException {
+		int n = end - begin;
+		char first = n > 0 ? s.charAt(begin) : 0;
+		char last = n > 0 ? s.charAt(end - 1) : 0;
+		if (n == 0 ||
+				(first == '\'' && last == '\'') ||
+				(first == '"' && last == '"') ||
 				(annotation != null && (annotation.type == NodeType.token || annotation.type == NodeType.new_line_keyword)) ||
-				Character.isDigit(node.charAt(0)) ||
-				(node.length() > 1 && node.charAt(0) == '.' && Character.isDefined(node.charAt(1))) ||
-				node.charAt(0) == '+' ||
-				node.charAt(0) == '-') {
-			type = NodeType.token; // This corresponds to a keyword or a special symbol like arithmetic symbols or brackets.
-		} else if (node.equals("TOKEN")) {
-			type = NodeType.token_keyword; // This node should appear when parsing a BNF definition only.
-		} else if (node.equals("IDENTIFIER")) {
-			type = NodeType.identifier_keyword; // This node should appear when parsing a BNF definition only.
-		} else if (node.equals("NEW_LINE")) {
-			type = NodeType.new_line_keyword; // This node should appear when parsing a BNF definition only.
-		} else {
-			type = NodeType.identifier; // This node is a defined as terminal but will actually refer to a BNF definition.
-			// This node should appear when parsing a BNF definition only.
-			// Check whether this is an identifier.
-			for (int i = 0; i < node.length(); i++) {
-				if (!Character.isJavaIdentifierPart(node.charAt(i))) {
-					throw new InvalidIdentifierException("Expression in [" + begin + ", " + (end - 1) + "]: '" + node + "', is not an identifier");
+				Character.isDigit(first) ||
+				(n > 1 && first == '.' && Character.isDefined(s.charAt(begin + 1))) ||
+				first == '+' ||
+				first == '-') {
+			return NodeType.token; // This corresponds to a keyword or a special symbol like arithmetic symbols or brackets.
+		} else if (equals(s, begin, end, "TOKEN")) {
+			return NodeType.token_keyword; // This node should appear when parsing a BNF definition only.
+		} else if (equals(s, begin, end, "IDENTIFIER")) {
+			return NodeType.identifier_keyword; // This node should appear when parsing a BNF definition only.
+		} else if (equals(s, begin, end, "NEW_LINE")) {
+			return NodeType.new_line_keyword; // This node should appear when parsing a BNF definition only.
+		} else if (equals(s, begin, end, "LEFT")) {
+			return NodeType.left; // This node should appear when parsing a BNF definition only.
+		} else if (equals(s, begin, end, "RIGHT")) {
+			return NodeType.right; // This node should appear when parsing a BNF definition only.
+		}
+		// This node is a defined as terminal but will actually refer to a BNF definition.
+		// This node should appear when parsing a BNF definition only.
+		// Check whether this is an identifier.
+		for (int i = begin; i < end; i++) {
+			if (!Character.isJavaIdentifierPart(s.charAt(i))) {
+				if (annotation != null) {
+					return NodeType.token; // A terminal of a parse tree, e.g. a literal which begins with a letter.
 				}
+				throw new InvalidIdentifierException("Expression in [" + begin + ", " + (end - 1) + "]: '" + s.subSequence(begin, end) + "', is not an identifier");
+			}
+		}
+		return NodeType.identifier;
+	}
+
+	private static boolean equals(CharSequence s, int begin, int end, String str) {
+		if (end - begin != str.length()) {
+			return false;
+		}
+		for (int i = 0; i < str.length(); i++) {
+			if (s.charAt(begin + i) != str.charAt(i)) {
+				return false;
 			}
 		}
+		return true;
+	}
+
+	/**
+	 * Reinitializes a node of a TreeArena as a non-terminal, like Tree(NodeType, Tree).
+	 */
+	void reset(NodeType type, Tree annotation) {
+		reset();
+		this.type = type;
+		this.begin = this.end = -1;
+		this.def = annotation;
+	}
+
+	/**
+	 * Reinitializes a node of a TreeArena as a terminal, like Tree(CharSequence, int, int, Tree),
+	 * except that 'node' is not set (see setNodes()).
+	 */
+	void reset(CharSequence s, int begin, int end, Tree annotation) throws InvalidIdentifierException {
+		reset();
+		this.s = s;
+		this.begin = begin;
+		this.end = end;
+		this.def = annotation;
+		this.type = type(s, begin, end, annotation);
+	}
+
+	private void reset() {
+		s = null;
+		node = null;
+		parent = null;
+		prefix = suffix = null;
+		hide = false;
+		if (branches != NO_BRANCHES) {
+			branches.clear(); // The list is kept for the next non-terminal.
+		}
+	}
+
+	/**
+	 * Sets 'node' of this node and of its subtrees. The nodes of a TreeArena are built
+	 * without it, so the substrings are made once for the nodes of the parse tree only.
+	 * A token and an empty node don't copy their text: they take the string of the token
+	 * from the parser's terminals and the empty string respectively.
+	 * @param terminals the tokens of the parser which has built the tree.
+	 */
+	void setNodes(TokenTrie terminals) {
+		if (begin == end) {
+			node = "";
+		} else if (branches.size() == 0 && def != null && def.type == NodeType.token) {
+			node = terminals.token(def.id);
+		} else {
+			node = s.subSequence(begin, end).toString();
+		}
+		for (Tree b : branches) {
+			if (b != null) {
+				b.setNodes(terminals);
+			}
+		}
+	}
+
+	/**
+	 * @return the name of the definition to which this node's definition belongs or null
+	 *   if this node has no definition. This is the logical rule even if the definition
+	 *   has been inlined into another one by GrammarOptimizer.
+	 */
+	public String rule() {
+		if (def == null) {
+			return null;
+		}
+		Tree t = def;
+		while (t.parent != null) {
+			t = t.parent;
+		}
+		return t.node;
+	}
+
+	/**
+	 * @return the elements of a list node, i.e. the even branches (the odd ones are the separators).
+	 *   A node which is not a list is a list of a single element unless it is empty, e.g. an
+	 *   optional list which hasn't matched.
+	 */
+	public List<Tree> elements() {
+		ArrayList<Tree> res = new ArrayList<Tree>();
+		if (type == NodeType.list) {
+			for (int i = 0; i < branches.size(); i += 2) {
+				res.add(branches.get(i));
+			}
+		} else if (node.length() > 0) {
+			res.add(this);
+		}
+		return res;
 	}
 
 	/**
@@ -201,6 +372,19 @@ public class Tree {
 	 *   to point at this node.
 	 */
 	public void addBranch(Tree t) {
+		link(t);
+		if (t != null) {
+			this.node = s.subSequence(begin, end).toString();
+		}
+	}
+
+	/**
+	 * Adds a branch like addBranch() but doesn't change 'node' (see setNodes()).
+	 */
+	void link(Tree t) {
+		if (branches == NO_BRANCHES) {
+			branches = new ArrayList<Tree>();
+		}
 		if (t == null) {
 			branches.add(null);
 			return;
@@ -214,7 +398,6 @@ public class Tree {
 		if (this.end < t.end) {
 			this.end = t.end;
 		}
-		this.node = s.substring(begin, end);
 		branches.add(t);
 		t.parent = this;
 	}
@@ -0,0 +1,92 @@
+/*
+ * Reusable parse tree nodes.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+import java.util.ArrayList;
+
+/**
+ *
+ * An arena of parse tree nodes which are allocated like a stack.<br/>
+ * The parser marks the arena before it tries an expression which may fail
+ * (an alternative of a choice, an optional, an element of a repetition or a list)
+ * and rewinds the arena to the mark if the expression fails. The nodes built by
+ * the failed expression are then reused by the next allocations together with their
+ * branch lists, so a backtrack doesn't leave garbage for the garbage collector.<br/>
+ * The nodes are created on demand, so the arena never holds more nodes than the
+ * largest number of nodes which have been in use at the same time.<br/>
+ * An arena is used for a single parse: the nodes below the allocation pointer make
+ * the parse tree which is returned to the caller.
+ *
+ * @author Zuben El Acribi
+ *
+ */
+class TreeArena {
+
+	private ArrayList<Tree> nodes = new ArrayList<Tree>();
+
+	/**
+	 * The allocation pointer: the number of the nodes in use.
+	 */
+	private int top;
+
+	/**
+	 * @return a non-terminal node, like new Tree(type, annotation).
+	 */
+	Tree tree(NodeType type, Tree annotation) {
+		if (top == nodes.size()) {
+			nodes.add(new Tree(type, annotation));
+		} else {
+			nodes.get(top).reset(type, annotation);
+		}
+		return nodes.get(top++);
+	}
+
+	/**
+	 * @return a terminal node, like new Tree(s, begin, end, annotation), but without 'node'.
+	 */
+	Tree tree(CharSequence s, int begin, int end, Tree annotation) throws InvalidIdentifierException {
+		Tree t;
+		if (top == nodes.size()) {
+			t = new Tree();
+			nodes.add(t);
+		} else {
+			t = nodes.get(top);
+		}
+		t.reset(s, begin, end, annotation);
+		top++;
+		return t;
+	}
+
+	/**
+	 * @return the allocation pointer.
+	 */
+	int mark() {
+		return top;
+	}
+
+	/**
+	 * Frees the nodes allocated after a mark.
+	 * @param mark a value returned by mark().
+	 */
+	void rewind(int mark) {
+		top = mark;
+	}
+
+}
@@ -0,0 +1,454 @@
+/*
+ * A directory of parse trees keyed by the content of the parsed files.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.TreeSet;
+
+import util.LineIndex;
+import util.MappedText;
+
+/**
+ *
+ * A cache of the parse trees of files in a directory, so an unchanged file is not parsed again.<br/>
+ * A tree is stored in a file named after the SHA-1 hash of the text of the parsed file, in a
+ * subdirectory named after the hash of the grammar of the parser. The grammar hash is taken over
+ * the definition nodes (see GrammarOptimizer) which are numbered in a fixed order, so a tree refers
+ * to its definitions by number and a changed grammar never reads the trees of another grammar.
+ * The grammar hash also covers what shapes a tree besides the grammar:<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- the format of the tree files (FORMAT_VERSION) and the node types, which are
+ * stored by ordinal;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- the compiled classes of the parser up to Parser (e.g. skipWhiteSpace()),
+ * of its lexical rules (e.g. JavaLiterals) and of its prepared text (e.g. LayoutText).<br/>
+ * The hash is taken over the same text which is parsed, so a file which changes while it is parsed
+ * doesn't store its tree under the hash of another text.<br/>
+ * A tree file begins with the hash (in hex) and an int with the length of the parsed text, which are
+ * checked when the tree is loaded, followed by the nodes in preorder;
+ * every node is a sequence of variable-length numbers (seven bits per byte):<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- the number of the definition plus 1 (0 for a null branch of a choice,
+ * which has nothing else);<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- the node type;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- the distance of the beginning from the beginning of the parent
+ * (zigzag-encoded, since it may be negative) and the length of the substring;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- the number of branches.<br/>
+ * A tree file is memory-mapped and the nodes are read from it directly. A tree is stored only if the
+ * file has no syntax errors (see Parser.setRecovering()), and a tree file which cannot be read is
+ * replaced by parsing the file again.
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public class TreeCache {
+
+	/**
+	 * The version of the format of the tree files, which should be incremented when it changes.
+	 */
+	public static final int FORMAT_VERSION = 1;
+
+	private static final NodeType[] TYPES = NodeType.values();
+
+	private Parser parser;
+
+	/**
+	 * The directory of the trees of the parser's grammar.
+	 */
+	private File dir;
+
+	/**
+	 * The definition nodes by number and the numbers by node.
+	 */
+	private ArrayList<Tree> defs = new ArrayList<Tree>();
+	private IdentityHashMap<Tree, Integer> defIds = new IdentityHashMap<Tree, Integer>();
+
+	private int hits, misses;
+
+	/**
+	 * Constructs a cache of the trees built by a parser.
+	 * @param parser the parser whose trees are cached.
+	 * @param dir the directory of the cache; it is created if it doesn't exist.
+	 */
+	public TreeCache(Parser parser, File dir) {
+		this.parser = parser;
+		MessageDigest md = digest();
+		update(md, "format " + FORMAT_VERSION);
+		update(md, Arrays.toString(TYPES));
+		HashSet<Class<?>> classes = new HashSet<Class<?>>();
+		for (Class<?> c = parser.getClass(); c != Object.class; c = c.getSuperclass()) {
+			update(md, c, classes);
+		}
+		for (LexicalRule rule : parser.lexicalRuleIds) {
+			if (rule != null) {
+				update(md, rule.getClass(), classes);
+			}
+		}
+		try {
+			update(md, parser.prepare("").getClass(), classes);
+		} catch (ParseException ex) {
+			throw new RuntimeException(ex);
+		}
+		for (String name : new TreeSet<String>(parser.definitions.keySet())) {
+			update(md, name);
+			number(parser.definitions.get(name));
+		}
+		for (Tree t : defs) {
+			update(md, t.type.name());
+			update(md, t.node == null ? "" : t.node);
+			StringBuffer branches = new StringBuffer();
+			for (Tree b : t.branches) {
+				branches.append(b == null ? -1 : defIds.get(b)).append(' ');
+			}
+			update(md, branches.toString());
+		}
+		this.dir = new File(dir, hex(md.digest()));
+		if (!this.dir.mkdirs() && !this.dir.isDirectory()) { // Another cache of the same grammar may create it.
+			throw new RuntimeException("Cannot create the parse cache " + this.dir.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Adds a class and its enclosing classes to a digest, by their bytecode if it can be read
+	 * and by their names otherwise.
+	 * @param md the digest.
+	 * @param c the class.
+	 * @param classes the classes which are already added.
+	 */
+	private static void update(MessageDigest md, Class<?> c, HashSet<Class<?>> classes) {
+		for (; c != null && classes.add(c); c = c.getEnclosingClass()) {
+			update(md, c.getName());
+			InputStream in = c.getResourceAsStream("/" + c.getName().replace('.', '/') + ".class");
+			if (in == null) {
+				continue;
+			}
+			try {
+				try {
+					byte[] buf = new byte[8192];
+					int n;
+					while ((n = in.read(buf)) > 0) {
+						md.update(buf, 0, n);
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Numbers the nodes of a definition in preorder; a node shared by several definitions keeps its first number.
+	 */
+	private void number(Tree t) {
+		if (t == null || defIds.containsKey(t)) {
+			return;
+		}
+		defIds.put(t, defs.size());
+		defs.add(t);
+		for (Tree b : t.branches) {
+			number(b);
+		}
+	}
+
+	/**
+	 * Loads the parse tree of a file from the cache or parses the file and stores its tree.
+	 * @param def the definition which the file should match.
+	 * @param f the file.
+	 * @return the parse tree as Parser.parse(String, File) returns it.
+	 */
+	public ParseTree parse(String def, File f) throws ParseException {
+		try {
+			MappedText text = new MappedText(f.toPath());
+			return parse(def, f, text, hash(text));
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Loads the parse tree of a file whose text has been read and hashed (e.g. in another thread).
+	 * @param def the definition which the file should match.
+	 * @param f the file.
+	 * @param text the text of the file, which is parsed if the tree is not in the cache.
+	 * @param hash the hash of the text (see hash()).
+	 * @return the parse tree as Parser.parse(String, File) returns it.
+	 */
+	public ParseTree parse(String def, File f, CharSequence text, String hash) throws ParseException {
+		File cached = new File(dir, hash + ".tree");
+		try {
+			if (cached.exists()) {
+				ParseTree res = load(cached, f, text, hash);
+				if (res != null) {
+					hits++;
+					return res;
+				}
+			}
+			misses++;
+			Tree t = parser.parse(def, text);
+			ParseTree res = new ParseTree(f.getCanonicalPath(), t, parser.lines);
+			res.diagnostics = parser.getDiagnostics();
+			if (res.diagnostics.isEmpty()) {
+				store(t, hash, cached);
+			}
+			return res;
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * @return the number of the trees which have been loaded from the cache.
+	 */
+	public int hits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of the files which have been parsed.
+	 */
+	public int misses() {
+		return misses;
+	}
+
+	/**
+	 * @return the parse tree stored in a tree file or null if the file cannot be read.
+	 */
+	private ParseTree load(File cached, File f, CharSequence text, String hash) throws IOException, ParseException {
+		ByteBuffer buf = map(cached);
+		CharSequence s = parser.prepare(text);
+		Tree t;
+		try {
+			for (int i = 0; i < hash.length(); i++) {
+				if (buf.get() != hash.charAt(i)) {
+					return null;
+				}
+			}
+			if (buf.getInt() != s.length()) {
+				return null;
+			}
+			t = read(buf, s, 0);
+			if (t == null || buf.hasRemaining()) {
+				return null;
+			}
+		} catch (RuntimeException ex) {
+			return null; // A truncated or damaged tree file is replaced.
+		}
+		t.setNodes(parser.terminals);
+		return new ParseTree(f.getCanonicalPath(), t, new LineIndex(s));
+	}
+
+	/**
+	 * Reads a node and its branches.
+	 * @param parentBegin the beginning of the parent.
+	 */
+	private Tree read(ByteBuffer buf, CharSequence s, int parentBegin) {
+		int d = readInt(buf);
+		if (d == 0) {
+			return null;
+		}
+		Tree def = defs.get(d - 1);
+		NodeType type = TYPES[readInt(buf)];
+		int z = readInt(buf);
+		int begin = parentBegin + ((z >>> 1) ^ -(z & 1));
+		int end = begin + readInt(buf);
+		int count = readInt(buf);
+		Tree res;
+		if (count == 0 && terminal(type)) {
+			res = new Tree();
+			res.def = def;
+			res.type = type;
+		} else {
+			res = new Tree(type, def);
+			for (int i = 0; i < count; i++) {
+				res.link(read(buf, s, begin));
+			}
+		}
+		res.s = s;
+		res.begin = begin;
+		res.end = end;
+		return res;
+	}
+
+	/**
+	 * @return 'true' if a node of the given type is built as a terminal when it has no branches.
+	 */
+	private static boolean terminal(NodeType type) {
+		switch (type) {
+		case sequence: case choice: case optional: case repetition: case list: case precedence:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Writes a parse tree to a temporary file which is then renamed, so a reader never sees a partial tree.
+	 * A tree which refers to a node which is not a definition (or cannot be written) is not stored.
+	 */
+	private void store(Tree t, String hash, File cached) {
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		for (int i = 0; i < hash.length(); i++) {
+			buf.put((byte) hash.charAt(i));
+		}
+		buf.putInt(t.s.length());
+		buf = write(buf, t, 0);
+		if (buf == null) {
+			return;
+		}
+		try {
+			File tmp = File.createTempFile(cached.getName(), ".tmp", dir);
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(buf.array(), 0, buf.position());
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(cached)) {
+				tmp.delete();
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Writes a node and its branches.
+	 * @return the buffer (which may have been reallocated) or null if the node has no definition number.
+	 */
+	private ByteBuffer write(ByteBuffer buf, Tree t, int parentBegin) {
+		if (t == null) {
+			return writeInt(buf, 0);
+		}
+		Integer d = t.def == null ? null : defIds.get(t.def);
+		if (d == null) {
+			return null;
+		}
+		int delta = t.begin - parentBegin;
+		buf = writeInt(buf, d + 1);
+		buf = writeInt(buf, t.type.ordinal());
+		buf = writeInt(buf, (delta << 1) ^ (delta >> 31));
+		buf = writeInt(buf, t.end - t.begin);
+		buf = writeInt(buf, t.branches.size());
+		for (Tree b : t.branches) {
+			buf = write(buf, b, t.begin);
+			if (buf == null) {
+				return null;
+			}
+		}
+		return buf;
+	}
+
+	private static ByteBuffer writeInt(ByteBuffer buf, int n) {
+		if (buf.remaining() < 5) {
+			ByteBuffer copy = ByteBuffer.allocate(buf.capacity() << 1);
+			buf.flip();
+			copy.put(buf);
+			buf = copy;
+		}
+		while ((n & ~0x7f) != 0) {
+			buf.put((byte) ((n & 0x7f) | 0x80));
+			n >>>= 7;
+		}
+		buf.put((byte) n);
+		return buf;
+	}
+
+	private static int readInt(ByteBuffer buf) {
+		int res = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = buf.get();
+			res |= (b & 0x7f) << shift;
+			if (b >= 0) {
+				return res;
+			}
+		}
+	}
+
+	/**
+	 * Takes the hash of the text of a file, which is the key of its tree in a cache.
+	 * Reading the text of a memory-mapped file (see MappedText) reads the file.
+	 * @return the SHA-1 hash of the text in hex.
+	 */
+	public static String hash(CharSequence text) {
+		MessageDigest md = digest();
+		byte[] buf = new byte[8192];
+		int n = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char ch = text.charAt(i);
+			buf[n++] = (byte) (ch >> 8);
+			buf[n++] = (byte) ch;
+			if (n == buf.length) {
+				md.update(buf, 0, n);
+				n = 0;
+			}
+		}
+		md.update(buf, 0, n);
+		return hex(md.digest());
+	}
+
+	private static MappedByteBuffer map(File f) throws IOException {
+		FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		try {
+			return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		} finally {
+			ch.close(); // The mapping remains valid after the channel is closed.
+		}
+	}
+
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	private static void update(MessageDigest md, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			md.update((byte) (ch >> 8));
+			md.update((byte) ch);
+		}
+		md.update((byte) 0);
+		md.update((byte) 0); // The strings are separated by a null character.
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuffer res = new StringBuffer();
+		for (byte b : bytes) {
+			res.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return res.toString();
+	}
+
+}
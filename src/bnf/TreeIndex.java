@@ -0,0 +1,210 @@
+/*
+ * An index of the nodes of a parse tree by position.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import util.LineIndex;
+
+/**
+ *
+ * Finds the nodes of a parse tree by position without walking the tree from the root.
+ * The index is built in a single pass and answers:<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- deepest(): the deepest node which contains a position (or a line and a column);<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- overlapping(): the nodes of a rule which overlap a range.<br/>
+ * The text is cut into segments where the deepest node changes, so the deepest node is found by
+ * binary search. The nodes of every rule are kept sorted by their beginnings; a node of a rule
+ * which begins before a range and overlaps it contains the beginning of the range, so it is
+ * an ancestor of the deepest node there.<br/>
+ * A node belongs to a rule if its definition is the body of the rule, like in
+ * tree.def.parent.node.equals("Statement").
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public class TreeIndex {
+
+	private Tree root;
+
+	private LineIndex lines;
+
+	/**
+	 * The deepest node from starts[i] up to starts[i + 1] is deepest[i].
+	 */
+	private int[] starts = new int[256];
+	private Tree[] deepest = new Tree[256];
+	private int segments;
+
+	/**
+	 * The nodes of every rule sorted by their beginnings.
+	 */
+	private HashMap<String, ArrayList<Tree>> rules = new HashMap<String, ArrayList<Tree>>();
+
+	/**
+	 * Indexes a parse tree obtained by a Parser (see ParseTree.index()).
+	 */
+	public TreeIndex(ParseTree t) {
+		this(t.tree, t.lines);
+	}
+
+	/**
+	 * Indexes a parse tree.
+	 * @param root the root of the tree.
+	 * @param lines the line index of the parsed string.
+	 */
+	public TreeIndex(Tree root, LineIndex lines) {
+		this.root = root;
+		this.lines = lines;
+		index(root);
+		Comparator<Tree> byBegin = new Comparator<Tree>() {
+			@Override
+			public int compare(Tree t1, Tree t2) {
+				return t1.begin < t2.begin ? -1 : t1.begin == t2.begin ? 0 : 1;
+			}
+		};
+		for (ArrayList<Tree> nodes : rules.values()) {
+			Collections.sort(nodes, byBegin); // Stable: an ancestor stays before its descendants.
+		}
+	}
+
+	private void index(Tree t) {
+		if (t.def != null && t.def.parent != null && t.def.parent.parent == null) {
+			ArrayList<Tree> nodes = rules.get(t.def.parent.node);
+			if (nodes == null) {
+				nodes = new ArrayList<Tree>();
+				rules.put(t.def.parent.node, nodes);
+			}
+			nodes.add(t);
+		}
+		if (t.begin == t.end) {
+			return;
+		}
+		segment(t.begin, t);
+		for (Tree b : t.branches) {
+			if (b != null) {
+				index(b);
+				if (b.begin < b.end) {
+					segment(b.end, t); // The text after a branch belongs to this node again.
+				}
+			}
+		}
+	}
+
+	private void segment(int begin, Tree t) {
+		if (segments > 0 && starts[segments - 1] == begin) {
+			deepest[segments - 1] = t; // A deeper node begins at the same position.
+			return;
+		}
+		if (segments == starts.length) {
+			int[] s = new int[segments << 1];
+			System.arraycopy(starts, 0, s, 0, segments);
+			starts = s;
+			Tree[] d = new Tree[segments << 1];
+			System.arraycopy(deepest, 0, d, 0, segments);
+			deepest = d;
+		}
+		starts[segments] = begin;
+		deepest[segments++] = t;
+	}
+
+	/**
+	 * @param pos a position in the parsed string.
+	 * @return the deepest non-empty node which contains the position or null if the position is
+	 *   outside of the tree.
+	 */
+	public Tree deepest(int pos) {
+		if (pos < root.begin || pos >= root.end) {
+			return null;
+		}
+		int low = 0;
+		int high = segments - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (starts[mid] <= pos) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return deepest[low];
+	}
+
+	/**
+	 * @param line a line number.
+	 * @param column a column number (see LineIndex).
+	 * @return the deepest non-empty node which contains the position or null.
+	 */
+	public Tree deepest(int line, int column) {
+		int pos = lines.position(line, column);
+		return pos < 0 ? null : deepest(pos);
+	}
+
+	/**
+	 * @param rule the name of a definition.
+	 * @param begin the beginning of a range.
+	 * @param end the end of the range (exclusive).
+	 * @return the non-empty nodes of the rule which have common characters with the range,
+	 *   sorted by their beginnings.
+	 */
+	public List<Tree> overlapping(String rule, int begin, int end) {
+		ArrayList<Tree> res = new ArrayList<Tree>();
+		ArrayList<Tree> nodes = rules.get(rule);
+		if (nodes == null || begin >= end) {
+			return res;
+		}
+		// The nodes which begin before the range and contain its beginning.
+		for (Tree t = deepest(begin); t != null; t = t.parent) {
+			if (t.begin < begin && t.def != null && t.def.parent != null && t.def.parent.parent == null &&
+					t.def.parent.node.equals(rule)) {
+				res.add(t);
+			}
+		}
+		Collections.reverse(res);
+		// The nodes which begin in the range.
+		int low = 0;
+		int high = nodes.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (nodes.get(mid).begin < begin) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		for (int i = low; i < nodes.size() && nodes.get(i).begin < end; i++) {
+			if (nodes.get(i).begin < nodes.get(i).end) {
+				res.add(nodes.get(i));
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @return the indexed tree.
+	 */
+	public Tree getRoot() {
+		return root;
+	}
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Path queries over parse trees.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package bnf;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ *
+ * A path query over the parse trees of a parser, e.g. MemberDecl/MethodOrFieldDecl//Block.<br/>
+ * A query consists of steps separated by '/' or '//'. A step is the name of a definition or
+ * '*' for any definition:<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- A/B: a node of B whose nearest ancestor which is a node of a definition is a node of A;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- A//B: a node of B below a node of A;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- /A: a node of A which is not below a node of another definition (usually the root);<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- A (without a leading slash): a node of A anywhere, like //A.<br/>
+ * A node belongs to a definition if its definition is the body of the definition
+ * (like in tree.def.parent.node.equals("Block")) or, for a definition without body such as
+ * Identifier, a reference to it. The nodes of the sequences, choices etc. inside a body are
+ * not steps. A definition whose body is a single reference is inlined by the parser, so its
+ * nodes are nodes of the referenced definition.<br/>
+ * A query is compiled against the definitions of a parser: every definition gets the bit mask of
+ * the steps which it matches, so a node is tested with one lookup. The steps which may
+ * still match form a bit set which is passed down the tree (a shift-and automaton), so the tree is
+ * walked once and the subtrees where no step may match are skipped.
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public class TreeQuery {
+
+	private String query;
+
+	/**
+	 * The steps which every definition node matches (including the '*' steps).
+	 * A node whose definition is not a key is not a node of a definition.
+	 */
+	private IdentityHashMap<Tree, Long> masks = new IdentityHashMap<Tree, Long>();
+
+	/**
+	 * The steps which follow '//', i.e. which stay active below a node of a definition that they don't match.
+	 */
+	private long descendant;
+
+	/**
+	 * The last step.
+	 */
+	private long last;
+
+	private TreeQuery(String query) {
+		this.query = query;
+	}
+
+	/**
+	 * Compiles a query.
+	 * @param parser the parser whose trees are queried.
+	 * @param query the query.
+	 * @return the compiled query.
+	 * @throws RuntimeException if the query is invalid or refers to an unknown definition.
+	 */
+	public static TreeQuery compile(Parser parser, String query) {
+		query = query.trim();
+		TreeQuery res = new TreeQuery(query);
+		ArrayList<String> steps = new ArrayList<String>();
+		int i = 0;
+		while (i < query.length()) {
+			boolean desc = false;
+			if (query.startsWith("//", i)) {
+				desc = true;
+				i += 2;
+			} else if (query.charAt(i) == '/') {
+				i++;
+			} else if (!steps.isEmpty()) {
+				throw new RuntimeException("Invalid query (expected '/' at " + i + "): " + query);
+			} else {
+				desc = true;
+			}
+			int begin = i;
+			while (i < query.length() && query.charAt(i) != '/') {
+				i++;
+			}
+			String step = query.substring(begin, i).trim();
+			if (step.length() == 0) {
+				throw new RuntimeException("Invalid query (empty step at " + begin + "): " + query);
+			}
+			if (!step.equals("*") && !parser.definitions.containsKey(step)) {
+				throw new RuntimeException("Unknown definition: " + step);
+			}
+			if (steps.size() == 63) {
+				throw new RuntimeException("Too many steps: " + query);
+			}
+			if (desc) {
+				res.descendant |= 1L << steps.size();
+			}
+			steps.add(step);
+		}
+		if (steps.isEmpty()) {
+			throw new RuntimeException("Empty query");
+		}
+		res.last = 1L << (steps.size() - 1);
+		IdentityHashMap<Tree, Tree> visited = new IdentityHashMap<Tree, Tree>();
+		for (String def : parser.definitions.keySet()) {
+			Tree body = parser.definitions.get(def);
+			if (body != null) {
+				res.masks.put(body, mask(steps, def));
+				res.references(body, parser, steps, visited);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Adds the references to the definitions without body.
+	 */
+	private void references(Tree t, Parser parser, List<String> steps, IdentityHashMap<Tree, Tree> visited) {
+		if (visited.put(t, t) != null) {
+			return;
+		}
+		if (t.type == NodeType.identifier && parser.definitions.containsKey(t.node) && parser.definitions.get(t.node) == null) {
+			masks.put(t, mask(steps, t.node));
+		}
+		for (Tree b : t.branches) {
+			references(b, parser, steps, visited);
+		}
+	}
+
+	private static long mask(List<String> steps, String def) {
+		long res = 0;
+		for (int i = 0; i < steps.size(); i++) {
+			if (steps.get(i).equals("*") || steps.get(i).equals(def)) {
+				res |= 1L << i;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @param root a parse tree obtained by the parser for which the query is compiled.
+	 * @return the nodes which match the query in document order.
+	 */
+	public List<Tree> select(Tree root) {
+		ArrayList<Tree> res = new ArrayList<Tree>();
+		select(root, 1, res, Integer.MAX_VALUE);
+		return res;
+	}
+
+	/**
+	 * @param root a parse tree obtained by the parser for which the query is compiled.
+	 * @return the first node which matches the query or null. The walk stops at the first match.
+	 */
+	public Tree first(Tree root) {
+		ArrayList<Tree> res = new ArrayList<Tree>(1);
+		select(root, 1, res, 1);
+		return res.isEmpty() ? null : res.get(0);
+	}
+
+	/**
+	 * @param t a node.
+	 * @param active the steps which may match the node.
+	 * @param res the matched nodes.
+	 * @param limit the number of the matched nodes after which the walk stops.
+	 * @return 'true' if the limit has been reached.
+	 */
+	private boolean select(Tree t, long active, List<Tree> res, int limit) {
+		Long mask = t.def == null ? null : masks.get(t.def);
+		if (mask != null) {
+			long matched = active & mask;
+			if ((matched & last) != 0) {
+				res.add(t);
+				if (res.size() >= limit) {
+					return true;
+				}
+			}
+			active = ((matched & ~last) << 1) | (active & descendant);
+			if (active == 0) {
+				return false;
+			}
+		}
+		for (Tree b : t.branches) {
+			if (b != null && select(b, active, res, limit)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return query;
+	}
+
+}
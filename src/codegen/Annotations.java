@@ -33,6 +33,9 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 
+import util.FileUtil;
+import util.LineIndex;
+
 /**
  * A pool for creating annotations. An annotation is a 5-int vector, the first one ow which points to a file number
  * (which corresponds to a file name), the second and the third one -- the line and column number of the beginning,
@@ -65,8 +68,6 @@ public class Annotations {
 	private static final int TUPLE_SIZE_IN_INTS = 5;
 	private static final int TUPLE_SIZE_IN_BYTES = TUPLE_SIZE_IN_INTS * 4;
 	
-	private static final int TAB_WIDTH = 2;
-	
 	/**
 	 * A file version contains the path to the original file and the time it was annotated,
 	 * and the path to which this file version maps in the source cache.
@@ -196,7 +197,7 @@ public class Annotations {
 	private RandomAccessFile annotFile;
 	
 	/** Mappings from a given string position to its line & columns number. */
-	private int[] linePos, columnPos;
+	private LineIndex lines;
 	
 	/** A flag which indicates that we have finished working with this annotation pool. */
 	private boolean shutdown;
@@ -293,21 +294,30 @@ public class Annotations {
 	 */
 	public boolean isUpToDate(File f) {
 		try {
-			List<FileVersion> listVersions = originalPathMap.get(f.getCanonicalPath());
-			if (listVersions != null) {
-				for (FileVersion version: listVersions) {
-					if (version.modified.getTime() > f.lastModified()) {
-						return false;
-					}
-				}
-				return true;
-			}
-			return false;
+			return isUpToDate(f.getCanonicalPath(), f.lastModified());
 		} catch (IOException ex) {
 			throw new RuntimeException(ex);
 		}
 	}
 	
+	/**
+	 * @param path the canonical path of a file to be annotated.
+	 * @param modified the modification time of the file, e.g. read together with its other attributes.
+	 * @return 'true' if the file has the same modified time as in the records in files.txt.
+	 */
+	public boolean isUpToDate(String path, long modified) {
+		List<FileVersion> listVersions = originalPathMap.get(path);
+		if (listVersions != null) {
+			for (FileVersion version: listVersions) {
+				if (version.modified.getTime() > modified) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+	
 	/**
 	 * Creates a new entry in the file record.
 	 * Reads the file in order to create the mappings from file position to
@@ -316,42 +326,23 @@ public class Annotations {
 	 * @return the new FileVersion entry.
 	 */
 	public FileVersion newSourceFile(String path) {
-		try {
-			linePos = new int[1024];
-			columnPos = new int[1024];
-			int pos = 0;
-			BufferedReader inp = new BufferedReader(new FileReader(path));
-			linePos[pos] = columnPos[pos] = 1;
-			pos++;
-			while (true) {
-				String line = inp.readLine();
-				if (line == null) {
-					break;
-				}
-				for (int i = 0; i <= line.length(); i++) {
-					if (pos >= linePos.length) {
-						int[] copy = new int[linePos.length << 1];
-						System.arraycopy(linePos, 0, copy, 0, linePos.length);
-						linePos = copy;
-						copy = new int[columnPos.length << 1];
-						System.arraycopy(columnPos, 0, copy, 0, columnPos.length);
-						columnPos = copy;
-					}
-					if (i < line.length()) {
-						linePos[pos] = linePos[pos - 1];
-						columnPos[pos] = columnPos[pos - 1] + (i > 0 && line.charAt(i - 1) == '\t' ? TAB_WIDTH : 1);
-					} else {
-						linePos[pos] = linePos[pos - 1] + 1;
-						columnPos[pos] = 1;
-					}
-					pos++;
-				}
-			}
-			inp.close();
-		} catch (IOException ex) {
-			throw new RuntimeException(ex);
+		String s = FileUtil.readFile(path);
+		if (s == null) {
+			throw new RuntimeException("Cannot read file: " + path);
 		}
-
+		return newSourceFile(path, new LineIndex(s));
+	}
+	
+	/**
+	 * Creates a new entry in the file record. Used for source files which have
+	 * already been read (e.g. parsed), so the file is not read again.
+	 * @param path the path to the source file.
+	 * @param lines the mappings from file position to line & column numbers,
+	 *   e.g. the line index of the parse tree.
+	 * @return the new FileVersion entry.
+	 */
+	public FileVersion newSourceFile(String path, LineIndex lines) {
+		this.lines = lines;
 		return newFile(path);
 	}
 	
@@ -381,10 +372,10 @@ public class Annotations {
 			throw new RuntimeException("The annotation pool is already shut down.");
 		}
 		writeInt(((files.size() - 1) << RESERVED_BITS) | t.ordinal());
-		writeInt(linePos[startPos]);
-		writeInt(columnPos[startPos]);
-		writeInt(linePos[endPos]);
-		writeInt(columnPos[endPos]);
+		writeInt(lines.line(startPos));
+		writeInt(lines.column(startPos));
+		writeInt(lines.line(endPos));
+		writeInt(lines.column(endPos));
 		long encodedAnnotation = t.ordinal() | annotNo;
 		annotNo += (1l << RESERVED_BITS);
 		return encodedAnnotation;
@@ -1,6 +1,7 @@
 package codegen;
 
 import codegen.Annotations.Type;
+import bnf.NodeType;
 import bnf.ParseTree;
 import bnf.Tree;
 
@@ -179,9 +180,8 @@ public class DebugCodeInserter {
 			if (tree.branches.get(0) != null) { // LocalVariableDeclarationStatement
 				tree = tree.branches.get(0); // { VariableModifier } Type VariableDeclarators ';'
 				tree = tree.branches.get(2); // VariableDeclarator { ',' VariableDeclarator }
-				insertDebugCode(tree.branches.get(0));
-				for (Tree t: tree.branches.get(1).branches) {
-					insertDebugCode(t.branches.get(1));
+				for (Tree t: tree.elements()) {
+					insertDebugCode(t);
 				}
 			} else if (tree.branches.get(1) != null) { // ClassOrInterfaceDeclaration
 				insertDebugCode(tree.branches.get(1));
@@ -270,9 +270,8 @@ public class DebugCodeInserter {
 						}
 						if (u.branches.get(4) != null) {
 							u = u.branches.get(4); // StatementExpression { ',' StatementExpression }
-							expression(u.branches.get(0));
-							for (Tree t: u.branches.get(1).branches) {
-								expression(t.branches.get(1));
+							for (Tree t: u.elements()) {
+								expression(t);
 							}
 						}
 					} else {
@@ -283,9 +282,8 @@ public class DebugCodeInserter {
 					Tree u = tree.branches.get(1); // [ForInit] ';' [Expression] ';' [ForUpdate]
 					if (u.branches.get(0).node.length() > 0) {
 						Tree v = u.branches.get(0); // StatementExpression { ',' StatementExpression }
-						expression(v.branches.get(0));
-						for (Tree t: v.branches.get(1).branches) {
-							expression(t.branches.get(1));
+						for (Tree t: v.elements()) {
+							expression(t);
 						}
 					}
 					if (u.branches.get(1).node.length() > 0) {
@@ -293,9 +291,8 @@ public class DebugCodeInserter {
 					}
 					if (u.branches.get(2).node.length() > 0) {
 						Tree v = u.branches.get(0); // StatementExpression { ',' StatementExpression }
-						expression(v.branches.get(0));
-						for (Tree t: v.branches.get(1).branches) {
-							expression(t.branches.get(1));
+						for (Tree t: v.elements()) {
+							expression(t);
 						}
 					}
 				}
@@ -345,9 +342,8 @@ public class DebugCodeInserter {
 				Tree res = tree.branches.get(1); // '(' Resources [';'] ')'
 				res = res.branches.get(1); // Resource { ';' Resource }
 				// Resource: {VariableModifier} ReferenceType VariableDeclaratorId '=' Expression
-				expression(res.branches.get(0).branches.get(4));
-				for (Tree t: res.branches.get(1).branches) {
-					expression(t.branches.get(1).branches.get(4));
+				for (Tree t: res.elements()) {
+					expression(t.branches.get(4));
 				}
 				insertDebugCode(tree.branches.get(2)); // Block
 				if (tree.branches.get(3).node.length() > 0) { // [Catches]
@@ -391,10 +387,9 @@ public class DebugCodeInserter {
 	private void lvalue(Tree t) { // Expression1: Expression2 [ Expression1Rest ]
 		assert t.branches.get(1).node.length() == 0; // We don't need Expression1Rest because
 		  // it is the triple operator, so this can't be an lvalue.
-		t = t.branches.get(0); // Expression2: Expression3 [ Expression2Rest ]
-		assert t.branches.get(1).node.length() == 0; // We don't need Expression2Rest because
-			// it is 'instacneof' or an infix operator, so this can't be an lvalue.
-		t = t.branches.get(0);
+		t = t.branches.get(0); // Expression2: Expression3 PRECEDENCE ( ... )
+		assert t.type != NodeType.precedence; // Without operators this is Expression3.
+			// We don't need 'instanceof' or an infix operator, so this can't be an lvalue.
 		// Expression3: (
 		// PrefixOp Expression3 |
 		// '(' ( Type | Expression ) ')' Expression3 |
@@ -529,12 +524,8 @@ public class DebugCodeInserter {
 		if (t.node.length() == 0) {
 			return; // No arguments.
 		}
-		t = t.branches.get(1);
-		if (t.node.length() > 0) { // Expression { ',' Expression }
-			expression(t.branches.get(0));
-			for (Tree u: t.branches.get(1).branches) {
-				expression(u.branches.get(1));
-			}
+		for (Tree u: t.branches.get(1).elements()) { // [ Expression { ',' Expression } ]
+			expression(u);
 		}
 	}
 	
@@ -709,9 +700,9 @@ public class DebugCodeInserter {
 					if (t.branches.get(1).node.length() == 0) { // No assignment.
 						t = t.branches.get(0); // Expression2 [ Expression1Rest ]
 						if (t.branches.get(1).node.length() == 0) { // No triple operator.
-							t = t.branches.get(0); // Expression3 [ Expression2Rest ]
-							if (t.branches.get(1).node.length() == 0) { // No 'instanceof' and infix operator.
-								t = t.branches.get(0); // PrefixOp Expression3 | '(' ( Type | Expression ) ')' Expression3 | Primary { Selector } { PostfixOp }
+							t = t.branches.get(0); // Expression3 or an operator expression
+							if (t.type != NodeType.precedence) { // No 'instanceof' and infix operator.
+								// PrefixOp Expression3 | '(' ( Type | Expression ) ')' Expression3 | Primary { Selector } { PostfixOp }
 								if (t.branches.size() == 3 && t.branches.get(2) != null) {
 									t = t.branches.get(2); // Primary { Selector } { PostfixOp }
 									if (t.branches.get(1).branches.size() == 0 &&
@@ -820,16 +811,15 @@ public class DebugCodeInserter {
 		boolean hasRuntimeExceptionInList = false;
 		boolean hasErrorInList = false;
 		if (exceptions != null) { // QualifiedIdentifierList: QualifiedIdentifier { ',' QualifiedIdentifier }
-			String exc = exceptions.branches.get(0).node;
+			String exc = exceptions.elements().get(0).node;
 			if (!hasRuntimeExceptionInList && (exc.equals("RuntimeException") || exc.equals("java.lang.RuntimeException") || exc.equals("Exception") || exc.equals("java.lang.Exception") || exc.equals("Throwable") || exc.equals("java.lang.Throwable"))) {
 				hasRuntimeExceptionInList = true;
 			}
 			if (!hasErrorInList && (exc.equals("Error") || exc.equals("java.lang.Error") || exc.equals("throwable") || exc.equals("Throwable") || exc.equals("java.lang.Throwable"))) {
 				hasErrorInList = true;
 			}
-			exception(hightLightedNodeblock, exc, scopeVar, buff);
-			for (Tree t: exceptions.branches.get(1).branches) {
-				exception(hightLightedNodeblock, t.branches.get(1).node, scopeVar, buff);
+			for (Tree t: exceptions.elements()) {
+				exception(hightLightedNodeblock, t.node, scopeVar, buff);
 			}
 		}
 		if (!hasRuntimeExceptionInList) {
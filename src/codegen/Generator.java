@@ -23,14 +23,39 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import codegen.Annotations.FileVersion;
 
+import bnf.Diagnostic;
 import bnf.JavaParser;
+import bnf.ParseException;
 import bnf.ParseTree;
 import bnf.ParserInitializationException;
+import bnf.Tree;
+import bnf.TreeCache;
 
 import util.FileUtil;
+import util.MappedText;
 
 /**
  * 
@@ -84,6 +109,50 @@ public abstract class Generator {
 		return new File("../.sourcecache");
 	}
 	
+	/**
+	 * @return the path where the parse trees of the unchanged source files are kept, so they
+	 *   are not parsed again when the project is transformed again (see TreeCache).
+	 */
+	public File getParseCache() {
+		return new File("../.parsecache");
+	}
+	
+	/**
+	 * The source files go through a pipeline of stages:<br/>
+	 * &nbsp;&nbsp;&nbsp;&nbsp;- read: the file is read and its text is hashed (see TreeCache);<br/>
+	 * &nbsp;&nbsp;&nbsp;&nbsp;- parse: the file is parsed or its tree is loaded from the parse cache;<br/>
+	 * &nbsp;&nbsp;&nbsp;&nbsp;- instrument: the file is annotated and transformed (see doJob());<br/>
+	 * &nbsp;&nbsp;&nbsp;&nbsp;- write: the transformed file is written and the source file is copied to the source cache.<br/>
+	 * The read, parse and write stages have threads of their own if their number of threads is
+	 * positive, otherwise they run in the calling thread.<br/>
+	 * The instrumentation is serial by design: it always runs in the calling thread, one file at a
+	 * time in the order in which the files are visited. The annotations of all files are numbered by a
+	 * single counter (see Annotations) and written to a single file in that order, so instrumenting
+	 * files in parallel would make the numbers depend on the scheduling. Hence the annotations are the
+	 * same whatever the number of threads, and only reading, parsing and writing are done in parallel.<br/>
+	 * Every stage runs at most a few files per thread ahead of the next one, so a fast stage waits
+	 * for a slow one instead of filling the memory.
+	 * @return the number of threads which read the source files.
+	 */
+	public int getReaderThreads() {
+		return 0;
+	}
+	
+	/**
+	 * @return the number of threads which parse the source files, each with a parser of its own
+	 *   (see getReaderThreads()).
+	 */
+	public int getParserThreads() {
+		return 0;
+	}
+	
+	/**
+	 * @return the number of threads which write the transformed files (see getReaderThreads()).
+	 */
+	public int getWriterThreads() {
+		return 0;
+	}
+	
 	/**
 	 * @return 'true' if the file is to be transformed. If 'false' and refuse(f) is also 'false'
 	 *   then the file is simply copied.
@@ -96,16 +165,13 @@ public abstract class Generator {
 	 * @return 'true' if the file is not to be copied / the directory is not to be followed.
 	 */
 	public boolean refuse(File f) {
-		return f.isDirectory() && (f.getName().equals("bin") || f.getName().equals("build") || f.getName().startsWith("."));
+		return (f.getName().equals("bin") || f.getName().equals("build") || f.getName().startsWith(".")) && f.isDirectory();
 	}
 
 // ------------------------------------------------------------------------------------------------
 // Main method.
 // ------------------------------------------------------------------------------------------------
 	
-	private static final boolean JUST_VISIT_FILES = false;
-	private static final boolean DO_TRANSFORMATIONS = true;
-	
 	/**
 	 * @param cleanTargetDir deletes the target directory to startup cleanly.
 	 */
@@ -115,10 +181,37 @@ public abstract class Generator {
 			FileUtil.delTree(getTargetPath());
 		}
 		initialize();
-		visit(getPath(), JUST_VISIT_FILES);
-		visit(getPath(), DO_TRANSFORMATIONS);
+		readers = stage("reader", getReaderThreads());
+		parsers = stage("parser", getParserThreads());
+		writers = stage("writer", getWriterThreads());
+		try {
+			walk();
+			for (Entry e : work) {
+				if (e.transform) {
+					transform(e);
+				} else {
+					copyFile(e);
+				}
+			}
+			while (!writes.isEmpty()) {
+				written(writes.poll());
+			}
+		} finally {
+			for (ExecutorService stage : new ExecutorService[] { readers, parsers, writers }) {
+				if (stage != null) {
+					stage.shutdownNow();
+				}
+			}
+		}
 		shutdown();
 		getAnnotations().shutdown();
+		int hits = cacheHits();
+		if (hits > 0) {
+			System.out.println(hits + " file(s) loaded from the parse cache.");
+		}
+		if (filesWithErrors > 0) {
+			System.out.println(filesWithErrors + " file(s) with errors copied without transformation.");
+		}
 		System.out.println("Job done in " + (System.currentTimeMillis() - start) + " ms.");
 	}
 
@@ -143,82 +236,406 @@ public abstract class Generator {
 	private Annotations ann;
 	private int filesToTransform;
 	private int currentFileToTransform;
+	private int filesWithErrors;
 	private int filesToCopy;
 	private int currentFileToCopy;
 	private long bytesToCopy;
 	private long copiedBytes;
-	private JavaParser parser;
 
 	/**
-	 * @return the Java parser which will be used by the current pool.
+	 * A file which is to be transformed or copied, with the attributes read by the walk.
 	 */
-	private JavaParser getJavaParser() {
-		if (parser == null) {
-			try {
-				parser = new JavaParser();
-			} catch (ParserInitializationException ex) {
-				throw new RuntimeException(ex);
+	private static class Entry {
+
+		File file;
+
+		/**
+		 * The canonical path of the file.
+		 */
+		String path;
+
+		long size;
+		boolean transform;
+
+		Entry(File file, String path, long size, boolean transform) {
+			this.file = file;
+			this.path = path;
+			this.size = size;
+			this.transform = transform;
+		}
+
+	}
+
+	/**
+	 * The files which are to be transformed or copied in the order of the walk.
+	 */
+	private List<Entry> work = new ArrayList<Entry>();
+
+	/**
+	 * The threads of the pipeline stages (see getReaderThreads()); a stage is null if it runs in the calling thread.
+	 */
+	private ExecutorService readers, parsers, writers;
+
+	/**
+	 * The parsers of the threads.
+	 */
+	private final ThreadLocal<Worker> worker = new ThreadLocal<Worker>() {
+		@Override
+		protected Worker initialValue() {
+			Worker w = new Worker(new TreeCache(newJavaParser(), getParseCache()));
+			synchronized (workerList) {
+				workerList.add(w);
+				w.number = workerList.size();
+			}
+			return w;
+		}
+	};
+	private List<Worker> workerList = new ArrayList<Worker>();
+
+	/**
+	 * The files which are to be transformed in the order of the walk; they are read and parsed ahead
+	 * of the instrumentation.
+	 */
+	private List<File> filesToParse = new ArrayList<File>();
+	private int nextFileToParse;
+	private ArrayDeque<File> parsedFiles = new ArrayDeque<File>();
+	private ArrayDeque<Future<Future<ParseTree>>> parses = new ArrayDeque<Future<Future<ParseTree>>>();
+
+	/**
+	 * The files which are being written in the order of the walk.
+	 */
+	private ArrayDeque<Future<Void>> writes = new ArrayDeque<Future<Void>>();
+
+	/**
+	 * The number of files per thread by which a stage may run ahead of the next one.
+	 * The files wait for the next stage in memory, so they are not processed further ahead.
+	 */
+	private static final int AHEAD = 4;
+
+	/**
+	 * The stack size of a thread of a stage. The parser is recursive, and so is the
+	 * conversion of a tree to a string, so a file with deeply nested expressions needs
+	 * a large stack.
+	 */
+	private static final long STAGE_STACK_SIZE = 64 << 20;
+
+	/**
+	 * Parses the files in a thread and reports the progress of the thread.
+	 */
+	private class Worker {
+
+		private int number;
+		private TreeCache cache;
+		private int parsed;
+
+		Worker(TreeCache cache) {
+			this.cache = cache;
+		}
+
+		ParseTree parse(File f, CharSequence text, String hash) throws ParseException {
+			ParseTree res = cache.parse("CompilationUnit", f, text, hash);
+			parsed++;
+			if (parsers != null) {
+				System.out.println("Parser " + number + ": parsed file " + res.filename + " (" + parsed + " file(s)).");
 			}
+			return res;
 		}
-		return parser;
+
 	}
 
 	/**
-	 * Visits all the file recursively in the given directory and determines whether
-	 * they will be transformed, copied or skipped.
-	 * @param dir a directory.
-	 * @param doJob 'true' to do the code transformation job or 'false' in order just to
-	 *   count files.
+	 * @return a Java parser for the current thread.
 	 */
-	private void visit(File dir, boolean doJob) {
+	private JavaParser newJavaParser() {
+		try {
+			JavaParser res = new JavaParser();
+			res.setRecovering(true); // A file with syntax errors doesn't stop the job.
+			return res;
+		} catch (ParserInitializationException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * @return the number of the files which have been loaded from the parse cache.
+	 */
+	private int cacheHits() {
+		int res = 0;
+		synchronized (workerList) {
+			for (Worker w : workerList) {
+				res += w.cache.hits();
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @return the threads of a stage or null if the stage runs in the calling thread.
+	 */
+	private ExecutorService stage(final String name, int threads) {
+		if (threads <= 0) {
+			return null;
+		}
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private AtomicInteger n = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(null, r, "Generator " + name + " " + n.incrementAndGet(), STAGE_STACK_SIZE);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Runs a task in a stage.
+	 * @param stage the threads of the stage or null to run the task in the calling thread.
+	 * @return the result of the task.
+	 */
+	private static <T> Future<T> run(ExecutorService stage, Callable<T> task) {
+		FutureTask<T> res = new FutureTask<T>(task);
+		if (stage == null) {
+			res.run();
+		} else {
+			stage.execute(res);
+		}
+		return res;
+	}
+
+	/**
+	 * Waits for the result of a task; the exceptions of the task are thrown as they are, apart from
+	 * the checked ones other than ParseException.
+	 */
+	private static <T> T get(Future<T> f) throws ParseException {
+		try {
+			return f.get();
+		} catch (InterruptedException ex) {
+			throw new RuntimeException(ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof ParseException) {
+				throw (ParseException) ex.getCause();
+			} else if (ex.getCause() instanceof Error) {
+				throw (Error) ex.getCause();
+			} else if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new RuntimeException(ex.getCause());
+		}
+	}
+
+	/**
+	 * Gives the next files to the read stage, which passes them to the parse stage when they are read.
+	 * @param f the next file which is to be transformed.
+	 * @return the parse of the file, which fails if the file cannot be read or parsed.
+	 */
+	private Future<Future<ParseTree>> parse(File f) {
+		int ahead = readers == null && parsers == null ? 1 : AHEAD * (Math.max(getReaderThreads(), 0) + Math.max(getParserThreads(), 0));
+		while (parses.size() < ahead && nextFileToParse < filesToParse.size()) {
+			final File g = filesToParse.get(nextFileToParse++);
+			parsedFiles.add(g);
+			parses.add(run(readers, new Callable<Future<ParseTree>>() {
+				@Override
+				public Future<ParseTree> call() throws IOException {
+					final MappedText text = new MappedText(g.toPath());
+					final String hash = TreeCache.hash(text);
+					return run(parsers, new Callable<ParseTree>() {
+						@Override
+						public ParseTree call() throws ParseException {
+							return worker.get().parse(g, text, hash);
+						}
+					});
+				}
+			}));
+		}
+		if (!f.equals(parsedFiles.poll())) {
+			throw new RuntimeException("The source files have changed during the job: " + f.getAbsolutePath());
+		}
+		return parses.poll();
+	}
+
+	/**
+	 * Gives a task to the write stage. If the stage is too far behind, the calling thread waits
+	 * for the oldest tasks.
+	 */
+	private void write(Callable<Void> task) {
+		writes.add(run(writers, task));
+		while (writes.size() > AHEAD * Math.max(getWriterThreads(), 1) || (!writes.isEmpty() && writes.peek().isDone())) {
+			written(writes.poll());
+		}
+	}
+
+	/**
+	 * Waits for a task of the write stage.
+	 */
+	private static void written(Future<Void> f) {
+		try {
+			get(f);
+		} catch (ParseException ex) {
+			throw new RuntimeException(ex); // A write doesn't parse.
+		}
+	}
+
+	/**
+	 * @return 'true' if a stage runs in threads of its own.
+	 */
+	private boolean pipelined() {
+		return readers != null || parsers != null || writers != null;
+	}
+
+	/**
+	 * Begins a progress line. If the stages run in threads of their own, the line is printed
+	 * when it is finished (see done()), since the other threads print lines of their own.
+	 * @return the line.
+	 */
+	private String progress(String line) {
+		if (!pipelined()) {
+			System.out.print(line);
+		}
+		return line;
+	}
+
+	/**
+	 * Finishes a progress line begun by progress().
+	 */
+	private void done(String line, String result) {
+		System.out.println(pipelined() ? line + result : result);
+	}
+
+	/**
+	 * Walks the project once and determines which files will be transformed, copied or skipped.
+	 * The walk reads the attributes of every file by a single call, so the files which are up to date
+	 * are skipped and the totals of the progress are counted without asking the file system again.
+	 * The files are put in the work list and in the list of the files to parse in the order of the walk.
+	 * The symbolic links are followed.
+	 */
+	private void walk() {
+		File dir = getPath();
 		if (!dir.exists()) {
 			throw new RuntimeException("Path " + dir.getAbsolutePath() + " does not exist");
 		}
 		if (!dir.isDirectory()) {
 			throw new RuntimeException("Path " + dir.getAbsolutePath() + " is not directory");
 		}
-		for (File entry: dir.listFiles()) {
-			if (entry.isDirectory()) {
-				if (accept(entry) || !refuse(entry)) {
-					visit(entry, doJob);
+		try {
+			final Path root = dir.toPath();
+			final Path realRoot = root.toRealPath();
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+				/**
+				 * The depth of the walks through symbolic links, which don't keep the paths canonical.
+				 */
+				private int links;
+
+				private HashSet<String> paths = new HashSet<String>();
+
+				@Override
+				public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+					File entry = d.toFile();
+					if (d.equals(root) || accept(entry) || !refuse(entry)) {
+						return FileVisitResult.CONTINUE;
+					}
+					return FileVisitResult.SKIP_SUBTREE;
 				}
-			} else if (entry.isFile() && !entry.isHidden()) {
-				if (accept(entry)) {
-					transform(entry, doJob);
-				} else if (!refuse(entry)) {
-					copyFile(entry, doJob);
+
+				@Override
+				public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+					boolean link = attrs.isSymbolicLink();
+					if (link) {
+						BasicFileAttributes target;
+						try {
+							target = Files.readAttributes(f, BasicFileAttributes.class);
+						} catch (IOException ex) {
+							return FileVisitResult.CONTINUE; // A broken link.
+						}
+						if (target.isDirectory()) {
+							links++;
+							Files.walkFileTree(f, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, this);
+							links--;
+							return FileVisitResult.CONTINUE;
+						}
+						attrs = target;
+					}
+					File entry = f.toFile();
+					if (!attrs.isRegularFile() || entry.isHidden()) {
+						return FileVisitResult.CONTINUE;
+					}
+					boolean transform = accept(entry);
+					if (!transform && refuse(entry)) {
+						return FileVisitResult.CONTINUE;
+					}
+					String path = (link || links > 0 ? f.toRealPath() : realRoot.resolve(root.relativize(f))).toString();
+					if (!paths.add(path) || getAnnotations().isUpToDate(path, attrs.lastModifiedTime().toMillis())) {
+						return FileVisitResult.CONTINUE; // A file reached through a link is done once.
+					}
+					work.add(new Entry(entry, path, attrs.size(), transform));
+					if (transform) {
+						filesToTransform++;
+						filesToParse.add(entry);
+					} else {
+						filesToCopy++;
+						bytesToCopy += attrs.size();
+					}
+					return FileVisitResult.CONTINUE;
 				}
-			}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path f, IOException ex) throws IOException {
+					if (ex instanceof FileSystemLoopException) {
+						return FileVisitResult.CONTINUE; // A link to a directory which contains it.
+					}
+					throw ex;
+				}
+
+			});
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
 		}
 	}
 	
 	/**
 	 * Transforms the given Java source file.
-	 * @param f a Java source file.
-	 * @param doJob 'true' to do the code transformation job or 'false' in order just to
-	 *   count up.
+	 * @param e a Java source file found by the walk.
 	 */
-	private void transform(File f, boolean doJob) {
-
-		if (getAnnotations().isUpToDate(f)) {
-			return;
-		}
-
-		if (!doJob) {
-			filesToTransform++;
-			return;
-		}
-		
+	private void transform(Entry e) {
+		File f = e.file;
 		try {
-			System.out.print("Transforming file " + f.getCanonicalPath() + "(" + (++currentFileToTransform) + "/" + filesToTransform + ")... ");
-			FileVersion file = ann.newSourceFile(f.getCanonicalPath());
-			ParseTree p = getJavaParser().parse(f);
+			String line = progress("Transforming file " + e.path + "(" + (++currentFileToTransform) + "/" + filesToTransform + ")... ");
+			Future<Future<ParseTree>> parse = parse(f);
+			ParseTree p;
+			try {
+				p = get(get(parse));
+			} catch (ParseException ex) {
+				syntaxErrors(f, line, "syntax errors", ex.getMessage());
+				return;
+			} catch (RuntimeException ex) { // The file cannot be read or the parser has failed.
+				syntaxErrors(f, line, "errors", String.valueOf(ex.getCause() instanceof IOException ? ex.getCause() : ex));
+				return;
+			}
+			if (!p.diagnostics.isEmpty()) {
+				StringBuffer errors = new StringBuffer();
+				for (Diagnostic d : p.diagnostics) {
+					errors.append(errors.length() > 0 ? "\n" : "").append(d);
+				}
+				syntaxErrors(f, line, "syntax errors", errors.toString());
+				return;
+			}
+			final FileVersion file = ann.newSourceFile(p.filename, p.lines);
 			doJob(p);
-			PrintWriter out = new PrintWriter(new FileWriter(getTarget(f, getTargetPath())));
-			out.print(p.tree);
-			out.close();
-			FileUtil.copyFile(f, new File(file.mappedPath));
-			System.out.println("done.");
+			final File source = f;
+			final File target = getTarget(f, getTargetPath());
+			final Tree tree = p.tree;
+			final String progress = line;
+			write(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					PrintWriter out = new PrintWriter(new FileWriter(target));
+					out.print(tree);
+					out.close();
+					FileUtil.copyFile(source, new File(file.mappedPath));
+					done(progress, "done.");
+					return null;
+				}
+			});
 		} catch (StackOverflowError ex) {
 			System.err.println("Stack overflow while parsing file " + f.getAbsolutePath());
 		} catch (Exception ex) {
@@ -227,30 +644,47 @@ public abstract class Generator {
 	}
 	
 	/**
-	 * Copies the given file.
-	 * @param f a which is not accepted as a source file but not refused to be copied.
-	 * @param doJob 'true' to copy the file or 'false' in order just to count up.
+	 * Reports the errors of a source file which cannot be read or parsed and copies it without
+	 * transformation, so one bad file doesn't stop the job. The file is not registered in the
+	 * annotations, so it is transformed again next time.
+	 * @param f a Java source file.
+	 * @param line the progress line of the file.
+	 * @param kind the kind of the errors, e.g. "syntax errors".
+	 * @param errors the error messages.
 	 */
-	private void copyFile(File f, boolean doJob) {
+	private void syntaxErrors(File f, String line, String kind, String errors) throws IOException {
+		filesWithErrors++;
+		done(line, kind + ", copied.");
+		System.err.println(f.getCanonicalPath() + ":\n" + errors);
+		copy(f, getTarget(f, getTargetPath()), null);
+	}
 
-		if (getAnnotations().isUpToDate(f)) {
-			return;
-		}
+	/**
+	 * Copies a file in the write stage.
+	 * @param line the progress line of the file which is finished when the file is copied or null.
+	 */
+	private void copy(final File f, final File target, final String line) {
+		write(new Callable<Void>() {
+			@Override
+			public Void call() {
+				FileUtil.copyFile(f, target);
+				if (line != null) {
+					done(line, "done.");
+				}
+				return null;
+			}
+		});
+	}
 
-		if (!doJob) {
-			filesToCopy++;
-			bytesToCopy += f.length();
-			return;
-		}
-		try {
-			System.out.print("Copying file " + f.getCanonicalPath() + "(" + (++currentFileToCopy) + "/" + filesToCopy + ", bytes " + copiedBytes + "/" + bytesToCopy + ")... ");
-			FileUtil.copyFile(f, getTarget(f, getTargetPath()));
-			copiedBytes += f.length();
-			ann.newFile(f.getCanonicalPath());
-		} catch (IOException ex) {
-			throw new RuntimeException(ex);
-		}
-		System.out.println("done.");
+	/**
+	 * Copies the given file.
+	 * @param e a file found by the walk which is not accepted as a source file but not refused to be copied.
+	 */
+	private void copyFile(Entry e) {
+		String line = progress("Copying file " + e.path + "(" + (++currentFileToCopy) + "/" + filesToCopy + ", bytes " + copiedBytes + "/" + bytesToCopy + ")... ");
+		copy(e.file, getTarget(e.file, getTargetPath()), line);
+		copiedBytes += e.size;
+		ann.newFile(e.path);
 	}
 	
 	/**
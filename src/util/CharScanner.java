@@ -0,0 +1,132 @@
+/*
+ * Fast scanning of character sequences.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package util;
+
+/**
+ *
+ * Finds white space ends and characters in a CharSequence more than one character at a time
+ * when the sequence permits it:<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- an ASCII MappedText is scanned eight bytes at a time (see MappedText);<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- a String is searched with String.indexOf() which the JVM vectorizes;<br/>
+ * &nbsp;&nbsp;&nbsp;&nbsp;- any other sequence is scanned character by character.<br/>
+ * The white space is the one of Character.isWhitespace(); the ASCII characters are looked up in a table.
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public class CharScanner {
+
+	private static final boolean[] WHITE_SPACE = new boolean[128];
+
+	static {
+		for (char ch = 0; ch < WHITE_SPACE.length; ch++) {
+			WHITE_SPACE[ch] = Character.isWhitespace(ch);
+		}
+	}
+
+	/**
+	 * @return 'true' if the character is white space.
+	 */
+	public static boolean whiteSpace(char ch) {
+		return ch < 128 ? WHITE_SPACE[ch] : Character.isWhitespace(ch);
+	}
+
+	/**
+	 * @param s the scanned sequence.
+	 * @param begin the position where the scanning begins.
+	 * @param end the end of the scanned substring (exclusive).
+	 * @return the position of the first character which is not white space or 'end'.
+	 */
+	public static int skipWhiteSpace(CharSequence s, int begin, int end) {
+		if (s instanceof MappedText) {
+			return ((MappedText) s).skipWhiteSpace(begin, end);
+		}
+		return scalarSkipWhiteSpace(s, begin, end);
+	}
+
+	/**
+	 * @param s the scanned sequence.
+	 * @param ch the searched character.
+	 * @param from the position where the search begins.
+	 * @param end the end of the scanned substring (exclusive).
+	 * @return the position of the first occurrence of the character or -1.
+	 */
+	public static int indexOf(CharSequence s, char ch, int from, int end) {
+		if (s instanceof String) {
+			int i = ((String) s).indexOf(ch, from);
+			return i < end ? i : -1;
+		}
+		if (s instanceof MappedText) {
+			return ((MappedText) s).indexOf(ch, from, end);
+		}
+		return scalarIndexOf(s, ch, from, end);
+	}
+
+	/**
+	 * @param s the scanned sequence.
+	 * @param chars the searched characters (a few ASCII characters).
+	 * @param from the position where the search begins.
+	 * @param end the end of the scanned substring (exclusive).
+	 * @return the position of the first occurrence of any of the characters or -1.
+	 */
+	public static int indexOfAny(CharSequence s, String chars, int from, int end) {
+		if (s instanceof MappedText) {
+			return ((MappedText) s).indexOfAny(chars, from, end);
+		}
+		return scalarIndexOfAny(s, chars, from, end);
+	}
+
+	static int scalarSkipWhiteSpace(CharSequence s, int begin, int end) {
+		while (begin < end && whiteSpace(s.charAt(begin))) {
+			begin++;
+		}
+		return begin;
+	}
+
+	static int scalarIndexOf(CharSequence s, char ch, int from, int end) {
+		for (int i = from; i < end; i++) {
+			if (s.charAt(i) == ch) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	static int scalarIndexOfAny(CharSequence s, String chars, int from, int end) {
+		// The ASCII characters are kept as bits of two words.
+		long low = 0, high = 0;
+		for (int i = 0; i < chars.length(); i++) {
+			char ch = chars.charAt(i);
+			if (ch < 64) {
+				low |= 1L << ch;
+			} else if (ch < 128) {
+				high |= 1L << (ch - 64);
+			}
+		}
+		for (int i = from; i < end; i++) {
+			char ch = s.charAt(i);
+			if (ch < 64 ? (low & (1L << ch)) != 0 : ch < 128 ? (high & (1L << (ch - 64))) != 0 : chars.indexOf(ch) >= 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+}
@@ -58,7 +58,7 @@ public class FileUtil {
 	}
 	
 	public static void copyFile(File src, File dest) {
-		if (!dest.getParentFile().exists() && !dest.getParentFile().mkdirs()) {
+		if (!dest.getParentFile().mkdirs() && !dest.getParentFile().isDirectory()) { // Another thread may create it.
 			throw new RuntimeException("Cannot create directory tree: " + dest.getParent());
 		}
 		try {
@@ -0,0 +1,165 @@
+/*
+ * Maps string positions to line and column numbers.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package util;
+
+import java.util.BitSet;
+
+/**
+ *
+ * An index of the line beginnings of a text.<br/>
+ * Only the positions where lines begin are kept (one int per line), so the
+ * index is built in a single pass and takes little memory. The line of a
+ * position is found by binary search and its column is calculated from the
+ * beginning of the line; a tab moves the column by TAB_WIDTH.<br/>
+ * A line ends with "\n", "\r\n" or a "\r" which is not followed by "\n".<br/>
+ * Line and column numbers start from 1.
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public class LineIndex {
+
+	/**
+	 * The default number of columns by which a tab moves the column.
+	 */
+	public static final int TAB_WIDTH = 2;
+
+	private CharSequence s;
+	private int tabWidth;
+
+	/**
+	 * The positions where lines begin. lineStarts[0] is always 0.
+	 */
+	private int[] lineStarts = new int[256];
+	private int lines;
+
+	/**
+	 * The lines which contain tabs. The columns in the other lines are calculated directly.
+	 */
+	private BitSet tabs = new BitSet();
+
+	/**
+	 * Indexes the given text with the default tab width.
+	 * @param s the text.
+	 */
+	public LineIndex(CharSequence s) {
+		this(s, TAB_WIDTH);
+	}
+
+	/**
+	 * Indexes the given text.
+	 * @param s the text.
+	 * @param tabWidth the number of columns by which a tab moves the column.
+	 */
+	public LineIndex(CharSequence s, int tabWidth) {
+		this.s = s;
+		this.tabWidth = tabWidth;
+		lineStarts[lines++] = 0;
+		for (int i = 0, n = s.length(); i < n; i++) {
+			char ch = s.charAt(i);
+			if (ch == '\n' || (ch == '\r' && (i + 1 == n || s.charAt(i + 1) != '\n'))) {
+				if (lines >= lineStarts.length) {
+					int[] copy = new int[lineStarts.length << 1];
+					System.arraycopy(lineStarts, 0, copy, 0, lines);
+					lineStarts = copy;
+				}
+				lineStarts[lines++] = i + 1;
+			} else if (ch == '\t') {
+				tabs.set(lines - 1);
+			}
+		}
+	}
+
+	/**
+	 * @param pos a position in the text (0..length).
+	 * @return the line number of the position.
+	 */
+	public int line(int pos) {
+		int low = 0;
+		int high = lines - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (lineStarts[mid] <= pos) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low + 1;
+	}
+
+	/**
+	 * @param pos a position in the text (0..length).
+	 * @return the column number of the position.
+	 */
+	public int column(int pos) {
+		int line = line(pos) - 1;
+		int begin = lineStarts[line];
+		if (!tabs.get(line)) {
+			return pos - begin + 1;
+		}
+		int column = 1;
+		for (int i = begin; i < pos; i++) {
+			column += s.charAt(i) == '\t' ? tabWidth : 1;
+		}
+		return column;
+	}
+
+	/**
+	 * The inverse of line() and column(). A column inside a tab is the position of the tab.
+	 * @param line a line number.
+	 * @param column a column number.
+	 * @return the position or -1 if the line doesn't have such a column.
+	 */
+	public int position(int line, int column) {
+		if (line < 1 || line > lines || column < 1) {
+			return -1;
+		}
+		int begin = lineStarts[line - 1];
+		int end = line < lines ? lineStarts[line] : s.length();
+		if (!tabs.get(line - 1)) {
+			int pos = begin + column - 1;
+			return pos < end ? pos : -1;
+		}
+		int c = 1;
+		for (int i = begin; i < end; i++) {
+			c += s.charAt(i) == '\t' ? tabWidth : 1;
+			if (column < c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the number of lines.
+	 */
+	public int lines() {
+		return lines;
+	}
+
+	/**
+	 * @return the indexed text.
+	 */
+	public CharSequence text() {
+		return s;
+	}
+
+}
@@ -0,0 +1,294 @@
+/*
+ * A memory-mapped text file.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *
+ * A text file seen as a CharSequence without copying it into the heap.<br/>
+ * The file is memory-mapped. If it contains ASCII characters only (the usual case for source code)
+ * every byte is a character and the text is read directly from the mapped file. Otherwise the file is
+ * decoded as UTF-8 once into an off-heap buffer. A file which is not valid UTF-8 is decoded with the
+ * platform charset instead, whose malformed input is replaced, like FileReader does (e.g. a Latin-1
+ * comment). A leading UTF-8 byte order mark is skipped.<br/>
+ * Unlike FileUtil.readFile() the line endings are kept as they are in the file.<br/>
+ * An ASCII file is scanned by CharScanner eight characters at a time: a long word of the file is tested
+ * with arithmetic whose result has the highest bit of every byte set if the byte matches.
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public class MappedText implements CharSequence {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final long ONES = 0x0101010101010101L;
+	private static final long LOW7 = 0x7f7f7f7f7f7f7f7fL;
+	private static final long HIGH = 0x8080808080808080L;
+
+	/**
+	 * The mapped file if it is ASCII, otherwise null.
+	 */
+	private ByteBuffer bytes;
+
+	/**
+	 * The decoded file if it is not ASCII, otherwise null.
+	 */
+	private CharBuffer chars;
+
+	private int offset;
+	private int length;
+
+	/**
+	 * Maps the given file.
+	 * @param path a text file.
+	 * @throws IOException if the file cannot be read or is longer than 2GB (1GB if it is not ASCII).
+	 */
+	public MappedText(Path path) throws IOException {
+		FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+		MappedByteBuffer buf;
+		try {
+			if (ch.size() > Integer.MAX_VALUE) {
+				throw new IOException("File too large: " + path);
+			}
+			buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		} finally {
+			ch.close(); // The mapping remains valid after the channel is closed.
+		}
+		int n = buf.limit();
+		int begin = 0;
+		if (n >= 3 && (buf.get(0) & 0xff) == 0xef && (buf.get(1) & 0xff) == 0xbb && (buf.get(2) & 0xff) == 0xbf) {
+			begin = 3; // Skip the byte order mark.
+		}
+		if (ascii(buf, begin, n)) {
+			buf.order(ByteOrder.LITTLE_ENDIAN); // The first byte of a word is its lowest one.
+			bytes = buf;
+			offset = begin;
+			length = n - begin;
+		} else {
+			chars = decode(path, buf, begin, n);
+			length = chars.limit();
+		}
+	}
+
+	private MappedText(ByteBuffer bytes, CharBuffer chars, int offset, int length) {
+		this.bytes = bytes;
+		this.chars = chars;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * Tests whether all bytes are below 0x80, eight bytes at a time.
+	 */
+	private static boolean ascii(ByteBuffer buf, int begin, int end) {
+		int i = begin;
+		for (; i + 8 <= end; i += 8) {
+			if ((buf.getLong(i) & 0x8080808080808080L) != 0) {
+				return false;
+			}
+		}
+		for (; i < end; i++) {
+			if (buf.get(i) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Decodes UTF-8 into an off-heap char buffer, or the platform charset if the file is not valid UTF-8.
+	 */
+	private static CharBuffer decode(Path path, ByteBuffer buf, int begin, int end) throws IOException {
+		ByteBuffer in = buf.duplicate();
+		in.position(begin);
+		in.limit(end);
+		// A UTF-8 file never has more characters than bytes.
+		long size = 2L * (end - begin);
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("File too large to be decoded: " + path);
+		}
+		CharBuffer out = ByteBuffer.allocateDirect((int) size).asCharBuffer();
+		CharsetDecoder decoder = UTF8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+		CoderResult res = decoder.decode(in, out, true);
+		if (res.isError()) {
+			in.position(begin);
+			out.clear();
+			decoder = Charset.defaultCharset().newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			res = decoder.decode(in, out, true);
+		}
+		if (res.isError() || res.isOverflow()) {
+			throw new IOException("Cannot decode file: " + path);
+		}
+		decoder.flush(out);
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * @return the highest bits of the bytes of a word which are equal to the byte 'b' (an ASCII character).
+	 */
+	private static long equal(long word, long b) {
+		long x = word ^ (b * ONES);
+		return ~(((x & LOW7) + LOW7) | x | LOW7);
+	}
+
+	/**
+	 * @return the highest bits of the bytes of a word which are at least 'b' (the bytes are ASCII characters).
+	 */
+	private static long atLeast(long word, long b) {
+		return (word + (0x80 - b) * ONES) & HIGH;
+	}
+
+	/**
+	 * @return the highest bits of the bytes of a word which are at most 'b' (the bytes are ASCII characters).
+	 */
+	private static long atMost(long word, long b) {
+		return ~(word + (0x7f - b) * ONES) & HIGH;
+	}
+
+	/**
+	 * @return the position of the first byte whose highest bit is set in 'mask'.
+	 */
+	private static int first(int pos, long mask) {
+		return pos + (Long.numberOfTrailingZeros(mask) >>> 3);
+	}
+
+	/**
+	 * See CharScanner.skipWhiteSpace().
+	 */
+	int skipWhiteSpace(int begin, int end) {
+		if (bytes == null) {
+			return CharScanner.scalarSkipWhiteSpace(this, begin, end);
+		}
+		if (begin < end && !CharScanner.whiteSpace((char) bytes.get(offset + begin))) {
+			return begin; // Most scans begin at a token, so the first character is tested alone.
+		}
+		int i = begin;
+		for (; i + 8 <= end; i += 8) {
+			long w = bytes.getLong(offset + i);
+			// The ASCII white space of Character.isWhitespace() is [0x09..0x0d] and [0x1c..0x20].
+			long space = (atLeast(w, 0x09) & atMost(w, 0x0d)) | (atLeast(w, 0x1c) & atMost(w, 0x20));
+			if (space != HIGH) {
+				return first(i, ~space & HIGH);
+			}
+		}
+		return CharScanner.scalarSkipWhiteSpace(this, i, end);
+	}
+
+	/**
+	 * See CharScanner.indexOf().
+	 */
+	int indexOf(char ch, int from, int end) {
+		if (bytes == null) {
+			return CharScanner.scalarIndexOf(this, ch, from, end);
+		}
+		if (ch >= 128) {
+			return -1;
+		}
+		int i = from;
+		for (; i + 8 <= end; i += 8) {
+			long m = equal(bytes.getLong(offset + i), ch);
+			if (m != 0) {
+				return first(i, m);
+			}
+		}
+		return CharScanner.scalarIndexOf(this, ch, i, end);
+	}
+
+	/**
+	 * See CharScanner.indexOfAny().
+	 */
+	int indexOfAny(String chars, int from, int end) {
+		if (bytes == null) {
+			return CharScanner.scalarIndexOfAny(this, chars, from, end);
+		}
+		int i = from;
+		for (; i + 8 <= end; i += 8) {
+			long w = bytes.getLong(offset + i);
+			long m = 0;
+			for (int k = 0; k < chars.length(); k++) {
+				if (chars.charAt(k) < 128) {
+					m |= equal(w, chars.charAt(k));
+				}
+			}
+			if (m != 0) {
+				return first(i, m);
+			}
+		}
+		return CharScanner.scalarIndexOfAny(this, chars, i, end);
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", length: " + length);
+		}
+		if (bytes != null) {
+			return (char) bytes.get(offset + index);
+		}
+		return chars.get(offset + index);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if (start < 0 || end > length || start > end) {
+			throw new IndexOutOfBoundsException("Range: [" + start + ", " + end + "), length: " + length);
+		}
+		return new MappedText(bytes, chars, offset + start, end - start);
+	}
+
+	@Override
+	public String toString() {
+		char[] res = new char[length];
+		if (bytes != null) {
+			for (int i = 0; i < length; i++) {
+				res[i] = (char) bytes.get(offset + i);
+			}
+		} else {
+			CharBuffer c = chars.duplicate();
+			c.position(offset);
+			c.get(res);
+		}
+		return new String(res);
+	}
+
+}
@@ -0,0 +1,259 @@
+/*
+ * A sliding window over a character stream.
+ * Copyright (C) 2013  Zuben El Acribi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package util;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ *
+ * A text read from a Reader seen as a CharSequence of which only a window is kept in memory.<br/>
+ * The positions are the positions in the whole stream. length() is the end of the text read so far
+ * and fill() reads more. The text before a cut point (see cut()) is discarded when the window is
+ * filled, so a position before the window may not be read any more. The window grows only if the
+ * text from the cut point doesn't fit in it.<br/>
+ * The window remembers the furthest position which has been read (see highWaterMark()), so the
+ * reader of the text may tell whether its result depends on the text which is not read yet.<br/>
+ * The line and the column of a position in the window are counted from the beginning of the stream
+ * with the line breaks of LineIndex: a '\n' or a '\r' which is not followed by '\n'. A '\r' at the end
+ * of the window ends a line only at the end of the stream, since the next character is not read yet,
+ * so such a '\r' is kept in the window by fill(). The stream may not be longer than 2G characters.
+ *
+ * @author Zuben El Acribi
+ *
+ */
+public class StreamText implements CharSequence {
+
+	private Reader r;
+	private int tabWidth;
+
+	private char[] buf;
+
+	/**
+	 * The position of buf[0] in the stream.
+	 */
+	private int offset;
+
+	/**
+	 * The number of characters in the window.
+	 */
+	private int count;
+
+	private boolean eof;
+
+	/**
+	 * The text before this position may be discarded.
+	 */
+	private int cut;
+
+	/**
+	 * The furthest position which has been read by charAt().
+	 */
+	private int highWaterMark = -1;
+
+	/**
+	 * The line and the column of the position 'offset'.
+	 */
+	private int line = 1;
+	private int column = 1;
+
+	/**
+	 * Constructs an empty window over a stream; the text is read by fill().
+	 * @param r the stream.
+	 * @param capacity the initial size of the window.
+	 */
+	public StreamText(Reader r, int capacity) {
+		this(r, capacity, LineIndex.TAB_WIDTH);
+	}
+
+	/**
+	 * Constructs an empty window over a stream; the text is read by fill().
+	 * @param r the stream.
+	 * @param capacity the initial size of the window.
+	 * @param tabWidth the number of columns by which a tab moves the column.
+	 */
+	public StreamText(Reader r, int capacity, int tabWidth) {
+		this.r = r;
+		this.buf = new char[Math.max(capacity, 16)];
+		this.tabWidth = tabWidth;
+	}
+
+	/**
+	 * Discards the text before the cut point and reads the stream until the window is full.
+	 * The window is doubled if it is full after the cut point.
+	 * @return 'false' if the end of the stream has been reached before.
+	 * @throws IOException if the stream cannot be read or is too long.
+	 */
+	public boolean fill() throws IOException {
+		if (eof) {
+			return false;
+		}
+		int drop = cut - offset;
+		if (drop > 0 && drop == count && buf[drop - 1] == '\r') {
+			drop--; // Whether it ends a line depends on the next character.
+		}
+		if (drop > 0) {
+			for (int i = 0; i < drop; i++) {
+				if (lineBreak(i)) {
+					line++;
+					column = 1;
+				} else {
+					column += buf[i] == '\t' ? tabWidth : 1;
+				}
+			}
+			System.arraycopy(buf, drop, buf, 0, count - drop);
+			count -= drop;
+			offset += drop;
+		}
+		if (count == buf.length) {
+			char[] copy = new char[buf.length << 1];
+			System.arraycopy(buf, 0, copy, 0, count);
+			buf = copy;
+		}
+		while (count < buf.length) {
+			int n = r.read(buf, count, buf.length - count);
+			if (n < 0) {
+				eof = true;
+				break;
+			}
+			if (offset + count + n < 0) {
+				throw new IOException("The stream is longer than " + Integer.MAX_VALUE + " characters");
+			}
+			count += n;
+		}
+		return true;
+	}
+
+	/**
+	 * Allows the text before a position to be discarded by the next fill().
+	 * @param pos a position which is not before the previous cut point.
+	 */
+	public void cut(int pos) {
+		if (pos > cut) {
+			cut = Math.min(pos, offset + count);
+		}
+	}
+
+	/**
+	 * @return 'true' if the whole stream has been read.
+	 */
+	public boolean eof() {
+		return eof;
+	}
+
+	/**
+	 * @return the furthest position which has been read since the last resetHighWaterMark() or -1.
+	 */
+	public int highWaterMark() {
+		return highWaterMark;
+	}
+
+	public void resetHighWaterMark() {
+		highWaterMark = -1;
+	}
+
+	/**
+	 * @return the position where the window begins.
+	 */
+	public int offset() {
+		return offset;
+	}
+
+	@Override
+	public int length() {
+		return offset + count;
+	}
+
+	@Override
+	public char charAt(int index) {
+		int i = index - offset;
+		if (i < 0 || i >= count) {
+			throw outside(index);
+		}
+		if (index > highWaterMark) {
+			highWaterMark = index;
+		}
+		return buf[i];
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if (start < offset || end > offset + count || start > end) {
+			throw outside(start < offset ? start : end);
+		}
+		return new String(buf, start - offset, end - start);
+	}
+
+	/**
+	 * @return the line of a position in the window.
+	 */
+	public int line(int pos) {
+		int res = line;
+		for (int i = 0, n = Math.min(pos - offset, count); i < n; i++) {
+			if (lineBreak(i)) {
+				res++;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @return the column of a position in the window.
+	 */
+	public int column(int pos) {
+		int n = Math.min(pos - offset, count);
+		int res = column;
+		int i = n - 1;
+		while (i >= 0 && !lineBreak(i)) {
+			i--;
+		}
+		if (i >= 0) {
+			res = 1; // The line begins in the window.
+		}
+		for (i++; i < n; i++) {
+			res += buf[i] == '\t' ? tabWidth : 1;
+		}
+		return res;
+	}
+
+	/**
+	 * Tells whether a line ends with a character of the window (see LineIndex).
+	 */
+	private boolean lineBreak(int i) {
+		char ch = buf[i];
+		return ch == '\n' || (ch == '\r' && (i + 1 < count ? buf[i + 1] != '\n' : eof));
+	}
+
+	private RuntimeException outside(int index) {
+		if (index < offset) {
+			return new IllegalStateException("The text before position " + offset + " has been discarded: " + index);
+		}
+		return new IndexOutOfBoundsException("Position: " + index + ", length: " + (offset + count));
+	}
+
+	/**
+	 * @return the text in the window.
+	 */
+	@Override
+	public String toString() {
+		return new String(buf, 0, count);
+	}
+
+}